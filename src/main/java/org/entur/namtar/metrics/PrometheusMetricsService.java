@@ -19,6 +19,7 @@ import io.micrometer.core.instrument.ImmutableTag;
 import io.micrometer.core.instrument.Tag;
 import io.micrometer.prometheus.PrometheusConfig;
 import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.entur.namtar.services.DatedServiceJourneyKeyFilter;
 import org.slf4j.MDC;
 import org.springframework.stereotype.Component;
 
@@ -36,6 +37,10 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
 
     private static final String DATA_CREATED_COUNTER_NAME = METRICS_PREFIX + "data.created";
     private static final String DATA_SEARCH_COUNTER_NAME = METRICS_PREFIX + "data.search";
+    private static final String DATA_OUTSIDE_IMPORT_WINDOW_COUNTER_NAME = METRICS_PREFIX + "data.outside.import.window";
+    private static final String KEY_FILTER_FPP_GAUGE_NAME = METRICS_PREFIX + "key.filter.expected.fpp";
+    private static final String KEY_FILTER_ELEMENTS_GAUGE_NAME = METRICS_PREFIX + "key.filter.elements";
+    private static final String KEY_FILTER_MEMORY_GAUGE_NAME = METRICS_PREFIX + "key.filter.memory.bytes";
 
     public PrometheusMetricsService() {
         super(PrometheusConfig.DEFAULT);
@@ -58,6 +63,24 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
         counter(DATA_CREATED_COUNTER_NAME, tags).increment();
     }
 
+    public void markDeparturesOutsideImportWindow(String codespace, boolean beforeWindow, long count) {
+        if (count <= 0) {
+            return;
+        }
+        List<Tag> tags = new ArrayList<>();
+        tags.add(new ImmutableTag("window", beforeWindow ? "before" : "after"));
+        if (codespace != null) {
+            tags.add(new ImmutableTag("codespace", codespace));
+        }
+        counter(DATA_OUTSIDE_IMPORT_WINDOW_COUNTER_NAME, tags).increment(count);
+    }
+
+    public void registerKeyFilter(DatedServiceJourneyKeyFilter keyFilter) {
+        gauge(KEY_FILTER_FPP_GAUGE_NAME, keyFilter, DatedServiceJourneyKeyFilter::getExpectedFalsePositiveProbability);
+        gauge(KEY_FILTER_ELEMENTS_GAUGE_NAME, keyFilter, DatedServiceJourneyKeyFilter::getApproximateElementCount);
+        gauge(KEY_FILTER_MEMORY_GAUGE_NAME, keyFilter, DatedServiceJourneyKeyFilter::getMemoryBytes);
+    }
+
     public void update() {
 //Do nothing
     }
@@ -0,0 +1,78 @@
+/*
+ *
+ *  * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ *  * the European Commission - subsequent versions of the EUPL (the "Licence");
+ *  * You may not use this work except in compliance with the Licence.
+ *  * You may obtain a copy of the Licence at:
+ *  *
+ *  *  https://joinup.ec.europa.eu/software/page/eupl
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the Licence is distributed on an "AS IS" basis,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the Licence for the specific language governing permissions and
+ *  * limitations under the Licence.
+ *
+ */
+
+package org.entur.namtar.model;
+
+import org.springframework.data.domain.Persistable;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.PostLoad;
+import javax.persistence.PostPersist;
+import javax.persistence.Transient;
+
+/**
+ * Next free creation number - incremented by a block at a time, and handed out in memory from there
+ */
+@Entity
+public class CreationNumberBlock implements Persistable<String> {
+
+    @Id
+    private String name;
+
+    private long nextValue;
+
+    /*
+     * New rows are always inserted, so that two pods initializing at the same time fails instead of overwriting
+     */
+    @Transient
+    private boolean isNew;
+
+    public CreationNumberBlock() {
+        //Needed for JPA
+    }
+
+    public CreationNumberBlock(String name, long nextValue) {
+        this.name = name;
+        this.nextValue = nextValue;
+        this.isNew = true;
+    }
+
+    @Override
+    public String getId() {
+        return name;
+    }
+
+    @Override
+    public boolean isNew() {
+        return isNew;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        this.isNew = false;
+    }
+
+    public long getNextValue() {
+        return nextValue;
+    }
+
+    public void setNextValue(long nextValue) {
+        this.nextValue = nextValue;
+    }
+}
@@ -29,12 +29,14 @@ import java.sql.Timestamp;
 
 @Entity
 @Table(indexes = {@Index(name = "serviceJourney_date_idx", columnList = "serviceJourneyId, departureDate"),
-                    @Index(name = "privateCode_date_idx", columnList = "privateCode, departureDate")}
+                    @Index(name = "privateCode_date_idx", columnList = "privateCode, departureDate"),
+                    @Index(name = "createdDate_idx", columnList = "createdDate")}
         )
 public class DatedServiceJourney {
 
     @Id
     @GeneratedValue
+    @JsonIgnore
     private Long id;
 
     @Transient
@@ -83,6 +85,14 @@ public class DatedServiceJourney {
         this.departureTime = departureTime;
     }
 
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
     public Timestamp getCreatedDate() {
         return createdDate;
     }
@@ -0,0 +1,54 @@
+/*
+ *
+ *  * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ *  * the European Commission - subsequent versions of the EUPL (the "Licence");
+ *  * You may not use this work except in compliance with the Licence.
+ *  * You may obtain a copy of the Licence at:
+ *  *
+ *  *  https://joinup.ec.europa.eu/software/page/eupl
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the Licence is distributed on an "AS IS" basis,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the Licence for the specific language governing permissions and
+ *  * limitations under the Licence.
+ *
+ */
+
+package org.entur.namtar.model;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Update time of the newest blob where all blobs up to and including it have been processed
+ */
+@Entity
+public class ImportWatermark {
+
+    @Id
+    private String name;
+
+    private long updateTime;
+
+    public ImportWatermark() {
+        //Needed for JPA
+    }
+
+    public ImportWatermark(String name, long updateTime) {
+        this.name = name;
+        this.updateTime = updateTime;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getUpdateTime() {
+        return updateTime;
+    }
+
+    public void setUpdateTime(long updateTime) {
+        this.updateTime = updateTime;
+    }
+}
@@ -20,8 +20,11 @@ package org.entur.namtar.model;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
 
 @Entity
+@Table(indexes = {@Index(name = "sourceFileName_idx", columnList = "sourceFileName")})
 public class SourceFile {
     @Id
     @GeneratedValue
@@ -31,6 +34,16 @@ public class SourceFile {
 
     private boolean processed;
 
+    /*
+     * Last zip-entry that is committed for a file that is not yet processed, or null
+     */
+    private String checkpoint;
+
+    /*
+     * Number of imports of the file that have failed - null for files stored before this was counted
+     */
+    private Integer failedAttempts;
+
     public SourceFile() {
         //Nedded for JPA
     }
@@ -55,4 +68,20 @@ public class SourceFile {
     public void setProcessed(boolean processed) {
         this.processed = processed;
     }
+
+    public String getCheckpoint() {
+        return checkpoint;
+    }
+
+    public void setCheckpoint(String checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    public int getFailedAttempts() {
+        return failedAttempts != null ? failedAttempts : 0;
+    }
+
+    public void setFailedAttempts(int failedAttempts) {
+        this.failedAttempts = failedAttempts;
+    }
 }
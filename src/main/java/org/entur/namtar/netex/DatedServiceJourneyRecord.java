@@ -0,0 +1,57 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import java.util.Objects;
+
+/**
+ * The parts of a NeTEx DatedServiceJourney that are needed to create DatedServiceJourneys.
+ */
+final class DatedServiceJourneyRecord {
+
+    private final String id;
+    private final String operatingDayRef;
+
+    DatedServiceJourneyRecord(String id, String operatingDayRef) {
+        this.id = id;
+        this.operatingDayRef = operatingDayRef;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getOperatingDayRef() {
+        return operatingDayRef;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        DatedServiceJourneyRecord that = (DatedServiceJourneyRecord) o;
+        return Objects.equals(id, that.id) && Objects.equals(operatingDayRef, that.operatingDayRef);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, operatingDayRef);
+    }
+}
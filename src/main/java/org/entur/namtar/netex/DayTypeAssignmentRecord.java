@@ -0,0 +1,61 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import java.time.LocalDate;
+
+/**
+ * A NeTEx DayTypeAssignment - assigns a date, an OperatingDay or an OperatingPeriod to a DayType.
+ */
+final class DayTypeAssignmentRecord {
+
+    private final String dayTypeRef;
+    private final LocalDate date;
+    private final String operatingDayRef;
+    private final String operatingPeriodRef;
+    private final boolean available;
+
+    /**
+     * @param available false if the assignment excludes the dates from the DayType
+     */
+    DayTypeAssignmentRecord(String dayTypeRef, LocalDate date, String operatingDayRef, String operatingPeriodRef, boolean available) {
+        this.dayTypeRef = dayTypeRef;
+        this.date = date;
+        this.operatingDayRef = operatingDayRef;
+        this.operatingPeriodRef = operatingPeriodRef;
+        this.available = available;
+    }
+
+    String getDayTypeRef() {
+        return dayTypeRef;
+    }
+
+    LocalDate getDate() {
+        return date;
+    }
+
+    String getOperatingDayRef() {
+        return operatingDayRef;
+    }
+
+    String getOperatingPeriodRef() {
+        return operatingPeriodRef;
+    }
+
+    boolean isAvailable() {
+        return available;
+    }
+}
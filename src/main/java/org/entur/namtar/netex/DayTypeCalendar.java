@@ -0,0 +1,235 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Expands DayTypes to the dates they are valid on.
+ *
+ * Each DayType is expanded once, to a bitset of days, and reused by all ServiceJourneys referring to it. Dates are
+ * included by DayTypeAssignments with a date, an OperatingDay or an OperatingPeriod - for OperatingPeriods limited
+ * by the days of week of the DayType, and the valid day bits of UicOperatingPeriods. Assignments that are not
+ * available exclude their dates.
+ */
+class DayTypeCalendar {
+
+    private final Map<String, DayTypeRecord> dayTypesById;
+    private final Map<String, List<DayTypeAssignmentRecord>> assignmentsByDayTypeId;
+    private final Map<String, OperatingPeriodRecord> operatingPeriodsById;
+    private final Map<String, LocalDate> operatingDayDatesById;
+
+    private final Map<String, DayTypeDates> datesByDayTypeId = new ConcurrentHashMap<>();
+
+    DayTypeCalendar(Map<String, DayTypeRecord> dayTypesById,
+                    Map<String, List<DayTypeAssignmentRecord>> assignmentsByDayTypeId,
+                    Map<String, OperatingPeriodRecord> operatingPeriodsById,
+                    Map<String, LocalDate> operatingDayDatesById) {
+        this.dayTypesById = dayTypesById;
+        this.assignmentsByDayTypeId = assignmentsByDayTypeId;
+        this.operatingPeriodsById = operatingPeriodsById;
+        this.operatingDayDatesById = operatingDayDatesById;
+    }
+
+    /**
+     * @return the dates the DayType is valid on, or null if the DayType is unknown
+     */
+    DayTypeDates getDates(String dayTypeId) {
+        DayTypeRecord dayType = dayTypesById.get(dayTypeId);
+        if (dayType == null) {
+            return null;
+        }
+        return datesByDayTypeId.computeIfAbsent(dayTypeId, id -> expand(dayType));
+    }
+
+    private DayTypeDates expand(DayTypeRecord dayType) {
+        List<DayTypeAssignmentRecord> assignments = assignmentsByDayTypeId.getOrDefault(dayType.getId(), List.of());
+
+        LocalDate firstDate = null;
+        for (DayTypeAssignmentRecord assignment : assignments) {
+            LocalDate fromDate = resolveFromDate(assignment);
+            if (fromDate != null && (firstDate == null || fromDate.isBefore(firstDate))) {
+                firstDate = fromDate;
+            }
+        }
+        if (firstDate == null) {
+            return DayTypeDates.EMPTY;
+        }
+
+        BitSet included = new BitSet();
+        BitSet excluded = new BitSet();
+        for (DayTypeAssignmentRecord assignment : assignments) {
+            addDays(dayType, assignment, firstDate, assignment.isAvailable() ? included : excluded);
+        }
+        included.andNot(excluded);
+
+        return new DayTypeDates(firstDate, included);
+    }
+
+    private LocalDate resolveFromDate(DayTypeAssignmentRecord assignment) {
+        LocalDate date = resolveDate(assignment);
+        if (date != null) {
+            return date;
+        }
+        OperatingPeriodRecord operatingPeriod = resolveOperatingPeriod(assignment);
+        return operatingPeriod != null ? resolvePeriodStart(operatingPeriod) : null;
+    }
+
+    private void addDays(DayTypeRecord dayType, DayTypeAssignmentRecord assignment, LocalDate firstDate, BitSet days) {
+        LocalDate date = resolveDate(assignment);
+        if (date != null) {
+            days.set(dayIndex(firstDate, date));
+            return;
+        }
+
+        OperatingPeriodRecord operatingPeriod = resolveOperatingPeriod(assignment);
+        if (operatingPeriod == null) {
+            return;
+        }
+        LocalDate fromDate = resolvePeriodStart(operatingPeriod);
+        LocalDate toDate = resolvePeriodEnd(operatingPeriod);
+        if (fromDate == null || toDate == null || toDate.isBefore(fromDate)) {
+            return;
+        }
+
+        String validDayBits = operatingPeriod.getValidDayBits();
+        int offset = dayIndex(firstDate, fromDate);
+        int length = dayIndex(fromDate, toDate) + 1;
+        DayOfWeek dayOfWeek = fromDate.getDayOfWeek();
+        for (int i = 0; i < length; i++) {
+            boolean validDayBit = validDayBits == null || (i < validDayBits.length() && validDayBits.charAt(i) == '1');
+            if (validDayBit && dayType.isValidOn(dayOfWeek)) {
+                days.set(offset + i);
+            }
+            dayOfWeek = dayOfWeek.plus(1);
+        }
+    }
+
+    /*
+     * Date of assignments with a date or an OperatingDay
+     */
+    private LocalDate resolveDate(DayTypeAssignmentRecord assignment) {
+        if (assignment.getDate() != null) {
+            return assignment.getDate();
+        }
+        if (assignment.getOperatingDayRef() != null) {
+            return operatingDayDatesById.get(assignment.getOperatingDayRef());
+        }
+        return null;
+    }
+
+    private OperatingPeriodRecord resolveOperatingPeriod(DayTypeAssignmentRecord assignment) {
+        if (assignment.getOperatingPeriodRef() != null) {
+            return operatingPeriodsById.get(assignment.getOperatingPeriodRef());
+        }
+        return null;
+    }
+
+    private LocalDate resolvePeriodStart(OperatingPeriodRecord operatingPeriod) {
+        if (operatingPeriod.getFromDate() != null) {
+            return operatingPeriod.getFromDate();
+        }
+        return operatingPeriod.getFromOperatingDayRef() != null ? operatingDayDatesById.get(operatingPeriod.getFromOperatingDayRef()) : null;
+    }
+
+    private LocalDate resolvePeriodEnd(OperatingPeriodRecord operatingPeriod) {
+        if (operatingPeriod.getToDate() != null) {
+            return operatingPeriod.getToDate();
+        }
+        return operatingPeriod.getToOperatingDayRef() != null ? operatingDayDatesById.get(operatingPeriod.getToOperatingDayRef()) : null;
+    }
+
+    private static int dayIndex(LocalDate firstDate, LocalDate date) {
+        return (int) ChronoUnit.DAYS.between(firstDate, date);
+    }
+
+    /**
+     * Parses a NeTEx DaysOfWeek-list, e.g. "Monday Tuesday" or "Weekdays". Values are case-insensitive, so that
+     * both the xml-values and the names of the JAXB-enumeration can be used.
+     */
+    static Set<DayOfWeek> parseDaysOfWeek(String value) {
+        Set<DayOfWeek> daysOfWeek = EnumSet.noneOf(DayOfWeek.class);
+        for (String day : value.trim().split("\\s+")) {
+            switch (day.toUpperCase(Locale.ROOT)) {
+                case "EVERYDAY":
+                    daysOfWeek.addAll(EnumSet.allOf(DayOfWeek.class));
+                    break;
+                case "WEEKDAYS":
+                    daysOfWeek.addAll(EnumSet.range(DayOfWeek.MONDAY, DayOfWeek.FRIDAY));
+                    break;
+                case "WEEKEND":
+                    daysOfWeek.add(DayOfWeek.SATURDAY);
+                    daysOfWeek.add(DayOfWeek.SUNDAY);
+                    break;
+                case "MONDAY":
+                case "TUESDAY":
+                case "WEDNESDAY":
+                case "THURSDAY":
+                case "FRIDAY":
+                case "SATURDAY":
+                case "SUNDAY":
+                    daysOfWeek.add(DayOfWeek.valueOf(day.toUpperCase(Locale.ROOT)));
+                    break;
+                default:
+                    // "None", or empty
+            }
+        }
+        return daysOfWeek;
+    }
+
+    /**
+     * The dates a DayType is valid on, as one bit per day from the first date.
+     */
+    static final class DayTypeDates {
+
+        static final DayTypeDates EMPTY = new DayTypeDates(null, new BitSet());
+
+        private final LocalDate firstDate;
+        private final BitSet days;
+
+        private DayTypeDates(LocalDate firstDate, BitSet days) {
+            this.firstDate = firstDate;
+            this.days = days;
+        }
+
+        int size() {
+            return days.cardinality();
+        }
+
+        boolean contains(LocalDate date) {
+            if (firstDate == null || date.isBefore(firstDate)) {
+                return false;
+            }
+            return days.get(dayIndex(firstDate, date));
+        }
+
+        void forEach(Consumer<LocalDate> consumer) {
+            for (int i = days.nextSetBit(0); i >= 0; i = days.nextSetBit(i + 1)) {
+                consumer.accept(firstDate.plusDays(i));
+            }
+        }
+    }
+}
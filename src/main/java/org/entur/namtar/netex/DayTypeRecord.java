@@ -0,0 +1,50 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import java.time.DayOfWeek;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The parts of a NeTEx DayType that are needed to expand it to dates.
+ */
+final class DayTypeRecord {
+
+    private final String id;
+    private final Set<DayOfWeek> daysOfWeek;
+
+    /**
+     * @param daysOfWeek null if the DayType is not restricted to specific days of week
+     */
+    DayTypeRecord(String id, Set<DayOfWeek> daysOfWeek) {
+        this.id = id;
+        this.daysOfWeek = daysOfWeek != null ? Collections.unmodifiableSet(EnumSet.copyOf(daysOfWeek)) : null;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    Set<DayOfWeek> getDaysOfWeek() {
+        return daysOfWeek;
+    }
+
+    boolean isValidOn(DayOfWeek dayOfWeek) {
+        return daysOfWeek == null || daysOfWeek.contains(dayOfWeek);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.namtar.netex;
+
+import com.google.cloud.storage.BlobInfo;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.config.IndexType;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import com.hazelcast.projection.Projections;
+import com.hazelcast.query.Predicates;
+import org.entur.namtar.routes.policy.SingletonRoutePolicyFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.entur.namtar.routes.api.MappingRoute.ET_CLIENT_NAME_HEADER;
+
+/**
+ * Work queue for importing NeTEx-files on all pods in the cluster.
+ *
+ * The leader publishes one task per blob, and every pod claims codespaces and imports their files oldest first.
+ * A codespace is only imported by one pod at a time. The claim is renewed while the pod is importing, and expires
+ * if the pod dies - a pod that loses its claim stops after the current file. Tasks that keep failing are moved
+ * aside after a number of attempts, so the following files of the codespace are not blocked. They are published
+ * again when a newer version of the file is listed, or once they have been set aside for a while.
+ */
+@Service
+public class DistributedImportQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(DistributedImportQueue.class);
+
+    static final String IMPORT_TASK_MAP_NAME = "namtarImportTasks";
+    static final String FAILED_IMPORT_TASK_MAP_NAME = "namtarFailedImportTasks";
+    static final String IMPORT_CLAIM_MAP_NAME = "namtarImportClaims";
+
+    interface BlobImporter {
+        boolean importBlob(String blobName) throws IOException;
+    }
+
+    private final Supplier<HazelcastInstance> hazelcast;
+    private final BlobImporter importer;
+    private final long leaseMillis;
+    private final int maxAttempts;
+    private final long failedRetryMillis;
+    private final ExecutorService importExecutor;
+    private final ScheduledExecutorService leaseRenewer;
+
+    private volatile boolean tasksIndexed;
+
+    /*
+     * Codespaces currently being imported by this pod
+     */
+    private final Set<String> activeCodespaces = ConcurrentHashMap.newKeySet();
+
+    /*
+     * Claims held by this pod, by codespace
+     */
+    private final Map<String, String> heldClaims = new ConcurrentHashMap<>();
+
+    @Autowired
+    public DistributedImportQueue(SingletonRoutePolicyFactory hazelcastService,
+                                  NetexLoader netexLoader,
+                                  NetexImportProperties importProperties,
+                                  @Value("${namtar.import.distributed.lease.minutes:5}") long leaseMinutes,
+                                  @Value("${namtar.import.distributed.max.attempts:3}") int maxAttempts,
+                                  @Value("${namtar.import.distributed.failed.retry.hours:24}") long failedRetryHours) {
+        this(hazelcastService::getHazelcastInstance, netexLoader::importBlob, importProperties.getCodespaceThreads(),
+                TimeUnit.MINUTES.toMillis(leaseMinutes), maxAttempts, TimeUnit.HOURS.toMillis(failedRetryHours));
+    }
+
+    DistributedImportQueue(Supplier<HazelcastInstance> hazelcast, BlobImporter importer, int importThreads, long leaseMillis,
+                           int maxAttempts, long failedRetryMillis) {
+        this.hazelcast = hazelcast;
+        this.importer = importer;
+        this.leaseMillis = leaseMillis;
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.failedRetryMillis = Math.max(failedRetryMillis, 1);
+        this.importExecutor = Executors.newFixedThreadPool(Math.max(importThreads, 1),
+                new ThreadFactoryBuilder().setNameFormat("netex-distributed-import-%d").setDaemon(true).build());
+        this.leaseRenewer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("netex-distributed-lease-%d").setDaemon(true).build());
+
+        // Renewed well before the lease expires
+        long renewalMillis = Math.max(leaseMillis / 3, 1);
+        leaseRenewer.scheduleAtFixedRate(this::renewClaims, renewalMillis, renewalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called by the leader with listed or requested blobs - publishes a task for every blob that is not already queued
+     */
+    public void publish(Iterator<BlobInfo> blobIterator) {
+        int counter = 0;
+        while (blobIterator.hasNext()) {
+            BlobInfo blob = blobIterator.next();
+            if (publish(blob.getName(), blob.getUpdateTime())) {
+                counter++;
+            }
+        }
+        log.info("Published {} new import tasks, {} queued in total", counter, getTasks().size());
+    }
+
+    /**
+     * Blobs that have already failed too many times are not published again, unless a newer version is listed
+     */
+    boolean publish(String blobName, long updateTime) {
+        if (blobName.endsWith("/")) {
+            return false;
+        }
+        ImportTask failed = getFailedTasks().get(blobName);
+        if (failed != null) {
+            if (updateTime <= failed.getUpdateTime()) {
+                return false;
+            }
+            log.info("{} was replaced after failing {} times - publishing it again", blobName, failed.getFailedAttempts());
+            getFailedTasks().delete(blobName);
+        }
+        return getTasks().putIfAbsent(blobName, new ImportTask(blobName, NetexLoader.getCodespace(blobName), updateTime)) == null;
+    }
+
+    /**
+     * Called periodically on all pods - starts importing every queued codespace not already being imported here
+     */
+    public void claimAndImport() {
+        for (String codespace : findQueuedCodespaces()) {
+            if (activeCodespaces.add(codespace)) {
+                importExecutor.execute(() -> {
+                    MDC.put(ET_CLIENT_NAME_HEADER, "namtar-internal");
+                    try {
+                        importCodespace(codespace);
+                    } finally {
+                        activeCodespaces.remove(codespace);
+                        MDC.remove(ET_CLIENT_NAME_HEADER);
+                    }
+                });
+            }
+        }
+    }
+
+    /*
+     * Imports one file at a time while this pod holds the claim for the codespace
+     */
+    private void importCodespace(String codespace) {
+        IMap<String, String> claims = getClaims();
+        String claimId = UUID.randomUUID().toString();
+        if (claims.putIfAbsent(codespace, claimId, leaseMillis, TimeUnit.MILLISECONDS) != null) {
+            return;
+        }
+        heldClaims.put(codespace, claimId);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (!claimId.equals(claims.get(codespace))) {
+                    log.warn("Claim on codespace {} was lost - stopping import", codespace);
+                    return;
+                }
+                ImportTask task = findNextTask(codespace);
+                if (task == null || !importTask(task)) {
+                    return;
+                }
+            }
+        } finally {
+            heldClaims.remove(codespace);
+            // Only removed if the claim is still held by this pod
+            claims.remove(codespace, claimId);
+        }
+    }
+
+    /**
+     * @return true if the next task of the codespace may be imported
+     */
+    private boolean importTask(ImportTask task) {
+        try {
+            long t1 = System.currentTimeMillis();
+            boolean imported = importer.importBlob(task.getBlobName());
+            getTasks().delete(task.getBlobName());
+            if (imported) {
+                log.info("Imported {} for codespace {} in {} ms", task.getBlobName(), task.getCodespace(), (System.currentTimeMillis() - t1));
+            }
+            return true;
+        } catch (Exception e) {
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            ImportTask failed = task.failed();
+            if (failed.getFailedAttempts() >= maxAttempts) {
+                // Moved aside, so the following files of the codespace are imported - and retried later, in case the
+                // failure was temporary
+                log.error("Import of {} failed {} times - giving up", task.getBlobName(), failed.getFailedAttempts(), e);
+                getFailedTasks().set(task.getBlobName(), failed, failedRetryMillis, TimeUnit.MILLISECONDS);
+                getTasks().delete(task.getBlobName());
+                return true;
+            }
+            // Kept first in the codespace, and retried on the next claim
+            log.warn("Import of {} failed - attempt {} of {}", task.getBlobName(), failed.getFailedAttempts(), maxAttempts, e);
+            getTasks().set(task.getBlobName(), failed);
+            return false;
+        }
+    }
+
+    private void renewClaims() {
+        try {
+            IMap<String, String> claims = getClaims();
+            heldClaims.forEach((codespace, claimId) -> {
+                if (claimId.equals(claims.get(codespace))) {
+                    claims.setTtl(codespace, leaseMillis, TimeUnit.MILLISECONDS);
+                }
+            });
+        } catch (Exception e) {
+            log.warn("Renewing import claims failed", e);
+        }
+    }
+
+    private Set<String> findQueuedCodespaces() {
+        Collection<String> codespaces = getTasks().project(Projections.singleAttribute("codespace"));
+        return new TreeSet<>(codespaces);
+    }
+
+    private ImportTask findNextTask(String codespace) {
+        return getTasks().values(Predicates.equal("codespace", codespace)).stream()
+                .min(Comparator.comparingLong(ImportTask::getUpdateTime).thenComparing(ImportTask::getBlobName))
+                .orElse(null);
+    }
+
+    private IMap<String, ImportTask> getTasks() {
+        IMap<String, ImportTask> tasks = hazelcast.get().getMap(IMPORT_TASK_MAP_NAME);
+        if (!tasksIndexed) {
+            // Tasks are looked up per codespace
+            tasks.addIndex(IndexType.HASH, "codespace");
+            tasksIndexed = true;
+        }
+        return tasks;
+    }
+
+    private IMap<String, ImportTask> getFailedTasks() {
+        return hazelcast.get().getMap(FAILED_IMPORT_TASK_MAP_NAME);
+    }
+
+    private IMap<String, String> getClaims() {
+        return hazelcast.get().getMap(IMPORT_CLAIM_MAP_NAME);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        leaseRenewer.shutdownNow();
+        importExecutor.shutdownNow();
+    }
+}
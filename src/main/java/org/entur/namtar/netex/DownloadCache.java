@@ -0,0 +1,360 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import com.google.cloud.storage.BlobInfo;
+import com.google.common.io.BaseEncoding;
+import org.entur.namtar.repository.blobstore.BlobStoreRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Downloaded NeTEx-zips, kept on disk within a budget and evicted least recently used first.
+ *
+ * Files are named by the size and CRC32C of their content, so a file is only reused when the blob is unchanged,
+ * and every download is verified against the blob before it is used. Files are pinned while in use, and are not
+ * evicted until released.
+ *
+ * Blobs larger than one range are downloaded as concurrent ranges, each written into position in the file.
+ */
+class DownloadCache {
+
+    private static final Logger log = LoggerFactory.getLogger(DownloadCache.class);
+
+    private static final int TRANSFER_BUFFER_SIZE = 1024 * 1024;
+
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    private final BlobStoreRepository repository;
+
+    private final Path directory;
+
+    private final long maxBytes;
+
+    /*
+     * Null when ranged downloads are disabled
+     */
+    private final ExecutorService rangeExecutor;
+
+    private final long rangeSize;
+
+    /*
+     * In access-order, least recently used first
+     */
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalBytes;
+
+    DownloadCache(BlobStoreRepository repository, Path directory, long maxBytes) throws IOException {
+        this(repository, directory, maxBytes, null, 0);
+    }
+
+    DownloadCache(BlobStoreRepository repository, Path directory, long maxBytes, ExecutorService rangeExecutor, long rangeSize) throws IOException {
+        this.repository = repository;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.rangeExecutor = rangeSize > 0 ? rangeExecutor : null;
+        this.rangeSize = rangeSize;
+        Files.createDirectories(directory);
+        loadExistingFiles();
+    }
+
+    /**
+     * Downloads the blob, or reuses a previous download of the same content. The returned file must be released
+     * when it is no longer used.
+     */
+    Path download(String blobName) throws IOException {
+        BlobInfo blobInfo = repository.getBlobInfo(blobName);
+        String key = getContentKey(blobInfo);
+        if (key != null) {
+            Path cached = acquire(key);
+            if (cached != null) {
+                log.info("Reusing previous download of {}", blobName);
+                return cached;
+            }
+        } else {
+            // Can not be verified, and is never reused
+            key = "download-" + UUID.randomUUID();
+        }
+
+        Path partialFile = Files.createTempFile(directory, key, PARTIAL_SUFFIX);
+        try {
+            long size = transfer(blobName, blobInfo, partialFile);
+            Path file = directory.resolve(key);
+            Files.move(partialFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            add(key, file, size);
+            return file;
+        } finally {
+            Files.deleteIfExists(partialFile);
+        }
+    }
+
+    /**
+     * Unpins a file returned by download, so that it may be evicted
+     */
+    synchronized void release(Path file) {
+        Entry entry = entries.get(file.getFileName().toString());
+        if (entry != null && entry.users > 0) {
+            entry.users--;
+        }
+        evict();
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /*
+     * Copies the blob in large chunks, and verifies it against the size and CRC32C of the blob when known
+     */
+    private long transfer(String blobName, BlobInfo blobInfo, Path partialFile) throws IOException {
+        long size;
+        CRC32C crc32c = new CRC32C();
+        if (rangeExecutor != null && blobInfo != null && blobInfo.getSize() != null && blobInfo.getSize() > rangeSize) {
+            size = transferRanges(blobName, blobInfo.getSize(), partialFile);
+            // Checksums of the ranges can not be combined, so the file is read back - which is fast compared to the download
+            if (blobInfo.getCrc32c() != null) {
+                updateCrc32c(crc32c, partialFile);
+            }
+        } else {
+            size = transferSequentially(blobName, partialFile, crc32c);
+        }
+
+        if (blobInfo != null && blobInfo.getSize() != null && blobInfo.getSize() != size) {
+            throw new IOException("Downloaded " + size + " bytes of " + blobName + ", expected " + blobInfo.getSize());
+        }
+        if (blobInfo != null && blobInfo.getCrc32c() != null && !blobInfo.getCrc32c().equals(encodeCrc32c(crc32c.getValue()))) {
+            throw new IOException("Downloaded " + blobName + " does not match CRC32C " + blobInfo.getCrc32c());
+        }
+        return size;
+    }
+
+    private long transferSequentially(String blobName, Path partialFile, CRC32C crc32c) throws IOException {
+        InputStream inputStream = repository.getBlob(blobName);
+        if (inputStream == null) {
+            throw new IOException("Blob " + blobName + " not found");
+        }
+        long size = 0;
+        try (ReadableByteChannel source = Channels.newChannel(inputStream);
+             FileChannel target = FileChannel.open(partialFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                crc32c.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    size += target.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+        return size;
+    }
+
+    /*
+     * The file is sized up front, and each range is written straight into position
+     */
+    private long transferRanges(String blobName, long size, Path partialFile) throws IOException {
+        try (FileChannel target = FileChannel.open(partialFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            target.write(ByteBuffer.allocate(1), size - 1);
+
+            List<Future<Long>> ranges = new ArrayList<>();
+            try {
+                for (long offset = 0; offset < size; offset += rangeSize) {
+                    long position = offset;
+                    long length = Math.min(rangeSize, size - offset);
+                    ranges.add(rangeExecutor.submit(() -> transferRange(blobName, target, position, length)));
+                }
+
+                long transferred = 0;
+                for (Future<Long> range : ranges) {
+                    transferred += range.get();
+                }
+                log.debug("Downloaded {} in {} ranges", blobName, ranges.size());
+                return transferred;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while downloading " + blobName);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Failed to download " + blobName, e.getCause());
+            } finally {
+                ranges.forEach(range -> range.cancel(true));
+            }
+        }
+    }
+
+    private long transferRange(String blobName, FileChannel target, long position, long length) throws IOException {
+        InputStream inputStream = repository.getBlobRange(blobName, position, length);
+        if (inputStream == null) {
+            throw new IOException("Blob " + blobName + " not found");
+        }
+        long transferred = 0;
+        try (ReadableByteChannel source = Channels.newChannel(inputStream)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_BUFFER_SIZE, length));
+            while (transferred < length && source.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    transferred += target.write(buffer, position + transferred);
+                }
+                buffer.clear();
+            }
+        }
+        if (transferred != length) {
+            throw new IOException("Downloaded " + transferred + " of " + length + " bytes at " + position + " of " + blobName);
+        }
+        return transferred;
+    }
+
+    private static void updateCrc32c(CRC32C crc32c, Path file) throws IOException {
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                crc32c.update(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    private synchronized Path acquire(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!Files.isRegularFile(entry.file)) {
+            entries.remove(key);
+            totalBytes -= entry.size;
+            return null;
+        }
+        entry.users++;
+        return entry.file;
+    }
+
+    private synchronized void add(String key, Path file, long size) {
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            totalBytes -= previous.size;
+        }
+        Entry entry = new Entry(file, size);
+        entry.users = 1 + (previous != null ? previous.users : 0);
+        entries.put(key, entry);
+        totalBytes += size;
+        evict();
+    }
+
+    /*
+     * Evicts unpinned files, least recently used first, until the cache is within budget
+     */
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.users > 0) {
+                continue;
+            }
+            iterator.remove();
+            totalBytes -= entry.size;
+            try {
+                Files.deleteIfExists(entry.file);
+            } catch (IOException e) {
+                log.warn("Could not delete {}", entry.file, e);
+            }
+        }
+    }
+
+    /*
+     * Keeps verified files from before a restart, oldest first, and removes interrupted downloads
+     */
+    private synchronized void loadExistingFiles() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(Files::isRegularFile).collect(Collectors.toCollection(ArrayList::new));
+        }
+        files.sort(Comparator.comparing(file -> file.toFile().lastModified()));
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(PARTIAL_SUFFIX) || name.startsWith("download-")) {
+                Files.deleteIfExists(file);
+            } else {
+                long size = Files.size(file);
+                entries.put(name, new Entry(file, size));
+                totalBytes += size;
+            }
+        }
+        evict();
+        log.info("Download cache in {} has {} files, {} bytes", directory, entries.size(), totalBytes);
+    }
+
+    /*
+     * Null when the content of the blob is not known
+     */
+    static String getContentKey(BlobInfo blobInfo) {
+        if (blobInfo == null || blobInfo.getSize() == null || blobInfo.getCrc32c() == null) {
+            return null;
+        }
+        return BaseEncoding.base16().lowerCase().encode(Base64.getDecoder().decode(blobInfo.getCrc32c())) + "-" + blobInfo.getSize();
+    }
+
+    /*
+     * As reported by GCS - base64 of the big-endian value
+     */
+    static String encodeCrc32c(long crc32c) {
+        return Base64.getEncoder().encodeToString(ByteBuffer.allocate(4).putInt((int) crc32c).array());
+    }
+
+    private static final class Entry {
+        private final Path file;
+        private final long size;
+        private int users;
+
+        private Entry(Path file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import com.hazelcast.collection.IQueue;
+import com.hazelcast.core.HazelcastInstance;
+import org.entur.namtar.routes.policy.SingletonRoutePolicyFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Blobs that upstream has asked to be imported right away, without waiting for the next listing.
+ *
+ * Requests may be received by any pod, and are drained by the leader. Blobs that are already processed are
+ * skipped by the import as usual.
+ */
+@Service
+public class ImportRequestQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(ImportRequestQueue.class);
+
+    static final String IMPORT_REQUEST_QUEUE_NAME = "namtarImportRequests";
+
+    private final Supplier<HazelcastInstance> hazelcast;
+
+    @Autowired
+    public ImportRequestQueue(SingletonRoutePolicyFactory hazelcastService) {
+        this(hazelcastService::getHazelcastInstance);
+    }
+
+    ImportRequestQueue(Supplier<HazelcastInstance> hazelcast) {
+        this.hazelcast = hazelcast;
+    }
+
+    /**
+     * @return number of blob names that were queued
+     */
+    public int request(Collection<String> blobNames) {
+        IQueue<String> queue = getQueue();
+        int counter = 0;
+        for (String blobName : blobNames) {
+            if (blobName != null && !blobName.isBlank() && !blobName.endsWith("/") && queue.offer(blobName.trim())) {
+                counter++;
+            }
+        }
+        log.info("Requested import of {} files", counter);
+        return counter;
+    }
+
+    /**
+     * Called by the leader
+     *
+     * @return the requested blob names in the order they were received, without duplicates
+     */
+    public List<String> drain() {
+        List<String> drained = new ArrayList<>();
+        getQueue().drainTo(drained);
+
+        Set<String> blobNames = new LinkedHashSet<>(drained);
+        if (!blobNames.isEmpty()) {
+            log.info("Importing {} requested files", blobNames.size());
+        }
+        return new ArrayList<>(blobNames);
+    }
+
+    private IQueue<String> getQueue() {
+        return hazelcast.get().getQueue(IMPORT_REQUEST_QUEUE_NAME);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.namtar.netex;
+
+import java.io.Serializable;
+
+/**
+ * A blob waiting to be imported, shared through Hazelcast when importing in distributed mode
+ */
+final class ImportTask implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    private final String blobName;
+    private final String codespace;
+    private final long updateTime;
+    private final int failedAttempts;
+
+    ImportTask(String blobName, String codespace, long updateTime) {
+        this(blobName, codespace, updateTime, 0);
+    }
+
+    private ImportTask(String blobName, String codespace, long updateTime, int failedAttempts) {
+        this.blobName = blobName;
+        this.codespace = codespace;
+        this.updateTime = updateTime;
+        this.failedAttempts = failedAttempts;
+    }
+
+    /**
+     * @return a copy of this task, with one more failed attempt
+     */
+    ImportTask failed() {
+        return new ImportTask(blobName, codespace, updateTime, failedAttempts + 1);
+    }
+
+    String getBlobName() {
+        return blobName;
+    }
+
+    String getCodespace() {
+        return codespace;
+    }
+
+    long getUpdateTime() {
+        return updateTime;
+    }
+
+    int getFailedAttempts() {
+        return failedAttempts;
+    }
+}
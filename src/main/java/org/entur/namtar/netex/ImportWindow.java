@@ -0,0 +1,75 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.NavigableSet;
+import java.util.SortedSet;
+
+/**
+ * The departure dates that are imported, relative to the day of the import. Departures outside the window are
+ * dropped before any lookups are made.
+ */
+class ImportWindow {
+
+    private final LocalDateTime start;
+    private final LocalDateTime end;
+
+    /**
+     * @param daysBefore days before today that are imported - negative values disable the limit
+     * @param daysAfter days after today that are imported - negative values disable the limit
+     */
+    ImportWindow(LocalDate today, int daysBefore, int daysAfter) {
+        this.start = daysBefore >= 0 ? today.minusDays(daysBefore).atStartOfDay() : null;
+        this.end = daysAfter >= 0 ? today.plusDays(daysAfter + 1).atStartOfDay() : null;
+    }
+
+    /**
+     * Removes the departures before the window
+     *
+     * @return the number of removed departures
+     */
+    int dropBefore(NavigableSet<LocalDateTime> departureDates) {
+        if (start == null) {
+            return 0;
+        }
+        SortedSet<LocalDateTime> beforeWindow = departureDates.headSet(start);
+        int dropped = beforeWindow.size();
+        beforeWindow.clear();
+        return dropped;
+    }
+
+    /**
+     * Removes the departures after the window
+     *
+     * @return the number of removed departures
+     */
+    int dropAfter(NavigableSet<LocalDateTime> departureDates) {
+        if (end == null) {
+            return 0;
+        }
+        SortedSet<LocalDateTime> afterWindow = departureDates.tailSet(end);
+        int dropped = afterWindow.size();
+        afterWindow.clear();
+        return dropped;
+    }
+
+    @Override
+    public String toString() {
+        return start + ".." + end;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the fingerprints of the line-files in the last successfully imported NeTEx-zip for each codespace.
+ *
+ * A line-file that is unchanged since the last import, with unchanged shared data, has already been imported
+ * and can be skipped - importing the same ServiceJourneys again never creates new DatedServiceJourneys.
+ */
+class ImportedEntryRegistry {
+
+    private final Map<String, ImportedEntries> importedEntriesByCodespace = new ConcurrentHashMap<>();
+
+    boolean isUnchanged(String codespace, String sharedDataFingerprint, String entryName, String entryFingerprint) {
+        if (codespace == null || sharedDataFingerprint == null || entryFingerprint == null) {
+            return false;
+        }
+        ImportedEntries importedEntries = importedEntriesByCodespace.get(codespace);
+        return importedEntries != null &&
+                importedEntries.sharedDataFingerprint.equals(sharedDataFingerprint) &&
+                entryFingerprint.equals(importedEntries.lineFileFingerprints.get(entryName));
+    }
+
+    /**
+     * Replaces the registered line-files for the codespace - should only be called when all line-files have
+     * been successfully imported.
+     */
+    void register(String codespace, String sharedDataFingerprint, Map<String, String> lineFileFingerprints) {
+        if (codespace == null || sharedDataFingerprint == null) {
+            return;
+        }
+        importedEntriesByCodespace.put(codespace, new ImportedEntries(sharedDataFingerprint, lineFileFingerprints));
+    }
+
+    private static class ImportedEntries {
+        private final String sharedDataFingerprint;
+        private final Map<String, String> lineFileFingerprints;
+
+        ImportedEntries(String sharedDataFingerprint, Map<String, String> lineFileFingerprints) {
+            this.sharedDataFingerprint = sharedDataFingerprint;
+            this.lineFileFingerprints = Map.copyOf(lineFileFingerprints);
+        }
+    }
+}
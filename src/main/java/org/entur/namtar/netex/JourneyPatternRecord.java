@@ -0,0 +1,47 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+/**
+ * The parts of a NeTEx JourneyPattern that are needed to create DatedServiceJourneys.
+ */
+final class JourneyPatternRecord {
+
+    private final String id;
+    private final String routeRef;
+    private final int stopCount;
+
+    JourneyPatternRecord(String id, String routeRef, int stopCount) {
+        this.id = id;
+        this.routeRef = routeRef;
+        this.stopCount = stopCount;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getRouteRef() {
+        return routeRef;
+    }
+
+    /**
+     * Number of points in sequence
+     */
+    int getStopCount() {
+        return stopCount;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import org.entur.namtar.repository.blobstore.LocalBlobStoreRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Requests an import as soon as a file lands in the local blob store, instead of waiting for the next listing
+ */
+@Service
+@Profile("local-blobstore")
+public class LocalBlobStoreWatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalBlobStoreWatcher.class);
+
+    private final LocalBlobStoreRepository repository;
+
+    private final ImportRequestQueue importRequestQueue;
+
+    private final String subFolder;
+
+    private WatchService watchService;
+
+    public LocalBlobStoreWatcher(@Autowired LocalBlobStoreRepository repository,
+                                 @Autowired ImportRequestQueue importRequestQueue,
+                                 @Value("${blobstore.gcs.subfolder}") String subFolder) {
+        this.repository = repository;
+        this.importRequestQueue = importRequestQueue;
+        this.subFolder = subFolder;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        Path folder = repository.resolve(subFolder);
+        Files.createDirectories(folder);
+
+        watchService = folder.getFileSystem().newWatchService();
+        folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        Thread watcher = new Thread(() -> watch(folder), "local-blobstore-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        log.info("Watching {} for new files", folder);
+    }
+
+    private void watch(Path folder) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                List<String> blobNames = new ArrayList<>();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Picked up by the next listing
+                        continue;
+                    }
+                    Path file = folder.resolve((Path) event.context());
+                    if (Files.isRegularFile(file) && !LocalBlobStoreRepository.isIncomplete(file)) {
+                        blobNames.add(repository.getName(file));
+                    }
+                }
+                key.reset();
+
+                if (!blobNames.isEmpty()) {
+                    try {
+                        importRequestQueue.request(blobNames);
+                    } catch (RuntimeException e) {
+                        log.warn("Could not request import of {} - left for the next listing", blobNames, e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.info("Stopped watching {}", folder);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Data parsed from a single xml-file in a NeTEx-zip.
+ *
+ * Each file is parsed into its own instance, so that files can be parsed concurrently. References that are not
+ * found in the file itself are resolved against the data already merged into the {@link NetexProcessor}, which
+ * is not modified while files are being parsed.
+ */
+class NetexEntryData {
+
+    private NetexProcessor processor;
+
+    /*
+     * Set when a reference is not found in this file, and has been looked up in the NetexProcessor
+     */
+    private boolean dependsOnProcessor;
+
+    LocalDateTime publicationTimestamp;
+    String timeZone;
+
+    final Map<String, JourneyPatternRecord> journeyPatternsById = new HashMap<>();
+    final Map<String, RouteRecord> routesById = new HashMap<>();
+    final List<ServiceJourneyRecord> serviceJourneys = new ArrayList<>();
+    final Map<String, String> serviceJourneyDateToDatedServiceJourney = new HashMap<>();
+    final Map<String, Set<DatedServiceJourneyRecord>> datedServiceJourneysByServiceJourney = new HashMap<>();
+
+    final Map<String, DayTypeRecord> dayTypesById = new HashMap<>();
+    final Map<String, List<DayTypeAssignmentRecord>> dayTypeAssignmentsByDayTypeId = new HashMap<>();
+    final Map<String, OperatingPeriodRecord> operatingPeriodsById = new HashMap<>();
+    final Map<String, LocalDate> operatingDayDatesById = new HashMap<>();
+    final Map<String, LocalDateTime> operatingDayDateByOperatingDayId = new HashMap<>();
+
+    NetexEntryData(NetexProcessor processor) {
+        this.processor = processor;
+    }
+
+    void addJourneyPattern(JourneyPatternRecord journeyPattern) {
+        journeyPatternsById.put(journeyPattern.getId(), journeyPattern);
+    }
+
+    void addRoute(RouteRecord route) {
+        routesById.put(route.getId(), route);
+    }
+
+    void addDayType(DayTypeRecord dayType) {
+        dayTypesById.put(dayType.getId(), dayType);
+    }
+
+    void addDayTypeAssignment(DayTypeAssignmentRecord dayTypeAssignment) {
+        if (dayTypeAssignment.getDayTypeRef() == null) {
+            return;
+        }
+        dayTypeAssignmentsByDayTypeId.computeIfAbsent(dayTypeAssignment.getDayTypeRef(), k -> new ArrayList<>()).add(dayTypeAssignment);
+    }
+
+    void addOperatingPeriod(OperatingPeriodRecord operatingPeriod) {
+        operatingPeriodsById.put(operatingPeriod.getId(), operatingPeriod);
+    }
+
+    void addOperatingDay(String operatingDayId, String serviceCalendarRef, LocalDateTime calendarDate) {
+        if (operatingDayId != null && calendarDate != null) {
+            operatingDayDatesById.put(operatingDayId, calendarDate.toLocalDate());
+        }
+
+        String id = operatingDayId;
+        if (serviceCalendarRef != null) {
+            id = serviceCalendarRef;
+        }
+        operatingDayDateByOperatingDayId.put(id, calendarDate);
+    }
+
+    void addServiceJourney(ServiceJourneyRecord serviceJourney) {
+        serviceJourneys.add(serviceJourney);
+    }
+
+    void addDatedServiceJourney(String id, String operatingDayRef, List<String> serviceJourneyRefs) {
+        if (serviceJourneyRefs.isEmpty()) {
+            return;
+        }
+
+        final LocalDateTime date = findOperatingDayDate(operatingDayRef);
+
+        final DatedServiceJourneyRecord datedServiceJourney = new DatedServiceJourneyRecord(id, operatingDayRef);
+        for (String serviceJourneyId : serviceJourneyRefs) {
+
+            serviceJourneyDateToDatedServiceJourney.put(NetexProcessor.getKey(date, serviceJourneyId), id);
+
+            datedServiceJourneysByServiceJourney.computeIfAbsent(serviceJourneyId, k -> new HashSet<>()).add(datedServiceJourney);
+        }
+    }
+
+    /*
+     * ServiceJourneys are only used when the referenced JourneyPattern is known, and has one stop per passing time
+     */
+    boolean hasMatchingJourneyPattern(String journeyPatternId, int passingTimeCount) {
+        JourneyPatternRecord journeyPattern = findJourneyPattern(journeyPatternId);
+
+        return journeyPattern != null && journeyPattern.getStopCount() == passingTimeCount;
+    }
+
+    private JourneyPatternRecord findJourneyPattern(String journeyPatternId) {
+        JourneyPatternRecord journeyPattern = journeyPatternsById.get(journeyPatternId);
+        if (journeyPattern == null) {
+            dependsOnProcessor = true;
+            journeyPattern = processor.journeyPatternsById.get(journeyPatternId);
+        }
+        return journeyPattern;
+    }
+
+    private LocalDateTime findOperatingDayDate(String operatingDayRef) {
+        LocalDateTime date = operatingDayDateByOperatingDayId.get(operatingDayRef);
+        if (date == null) {
+            dependsOnProcessor = true;
+            date = processor.operatingDayDateByOperatingDayId.get(operatingDayRef);
+        }
+        return date;
+    }
+
+    /**
+     * @return a shared instance of the string, for values that are repeated throughout the NeTEx-zip
+     */
+    String intern(String value) {
+        return value != null ? processor.interner.intern(value) : null;
+    }
+
+    /**
+     * @return true if the parsed data only depends on the file itself, and not on previously parsed files
+     */
+    boolean isSelfContained() {
+        return !dependsOnProcessor;
+    }
+
+    /**
+     * Releases the reference to the NetexProcessor, so that self-contained data can be kept after the
+     * processor is done. No more data can be added after this.
+     */
+    void detachFromProcessor() {
+        processor = null;
+    }
+
+    public void setTimeZone(String timeZone) {
+        this.timeZone = timeZone;
+    }
+}
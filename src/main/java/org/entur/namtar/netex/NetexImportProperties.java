@@ -0,0 +1,198 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Settings for reading and importing NeTEx-files, bound from namtar.import.*
+ */
+@Component
+@ConfigurationProperties(prefix = "namtar.import")
+public class NetexImportProperties {
+
+    /**
+     * stax, jaxb or jaxb_filtered
+     */
+    private String parserMode = "stax";
+
+    /**
+     * Threads used to parse line-files concurrently, 0 uses one per available processor
+     */
+    private int parserThreads = 0;
+
+    /**
+     * Max number of parsed shared data-files kept for reuse in later imports, 0 disables the cache
+     */
+    private long sharedDataCacheSize = 50;
+
+    /**
+     * Skip line-files that are unchanged since the last import of the same codespace
+     */
+    private boolean incremental = true;
+
+    /**
+     * Departures before this many days ago are not imported, negative values disable the limit
+     */
+    private int windowDaysBefore = 2;
+
+    /**
+     * Departures after this many days ahead are not imported, negative values disable the limit
+     */
+    private int windowDaysAfter = 400;
+
+    /**
+     * Number of files downloaded ahead while the current file is processed, 0 downloads one file at a time
+     */
+    private int prefetchCount = 2;
+
+    /**
+     * Number of codespaces imported concurrently, files within a codespace are always imported in order
+     */
+    private int codespaceThreads = 4;
+
+    /**
+     * Departures from completed line-files are committed with a checkpoint when at least this many are collected,
+     * so that an interrupted import can be resumed - 0 commits each file in a single transaction
+     */
+    private int checkpointDepartures = 0;
+
+    /**
+     * Disk budget for downloaded files in the tempfile directory, least recently used files are deleted first
+     */
+    private long downloadCacheMegabytes = 2048;
+
+    /**
+     * Files larger than one range are downloaded as concurrent ranges
+     */
+    private long downloadRangeMegabytes = 32;
+
+    /**
+     * Threads used to download ranges, 0 downloads each file as one stream
+     */
+    private int downloadRangeThreads = 4;
+
+    /**
+     * Import transactions running longer than this are rolled back - rows committed later than their created date
+     * plus this timeout can then not exist, which the key filter relies on when refreshing
+     */
+    private int transactionTimeoutMinutes = 30;
+
+    public String getParserMode() {
+        return parserMode;
+    }
+
+    public void setParserMode(String parserMode) {
+        this.parserMode = parserMode;
+    }
+
+    public int getParserThreads() {
+        return parserThreads;
+    }
+
+    public void setParserThreads(int parserThreads) {
+        this.parserThreads = parserThreads;
+    }
+
+    public long getSharedDataCacheSize() {
+        return sharedDataCacheSize;
+    }
+
+    public void setSharedDataCacheSize(long sharedDataCacheSize) {
+        this.sharedDataCacheSize = sharedDataCacheSize;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public int getWindowDaysBefore() {
+        return windowDaysBefore;
+    }
+
+    public void setWindowDaysBefore(int windowDaysBefore) {
+        this.windowDaysBefore = windowDaysBefore;
+    }
+
+    public int getWindowDaysAfter() {
+        return windowDaysAfter;
+    }
+
+    public void setWindowDaysAfter(int windowDaysAfter) {
+        this.windowDaysAfter = windowDaysAfter;
+    }
+
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    public void setPrefetchCount(int prefetchCount) {
+        this.prefetchCount = prefetchCount;
+    }
+
+    public int getCodespaceThreads() {
+        return codespaceThreads;
+    }
+
+    public void setCodespaceThreads(int codespaceThreads) {
+        this.codespaceThreads = codespaceThreads;
+    }
+
+    public int getCheckpointDepartures() {
+        return checkpointDepartures;
+    }
+
+    public void setCheckpointDepartures(int checkpointDepartures) {
+        this.checkpointDepartures = checkpointDepartures;
+    }
+
+    public long getDownloadCacheMegabytes() {
+        return downloadCacheMegabytes;
+    }
+
+    public void setDownloadCacheMegabytes(long downloadCacheMegabytes) {
+        this.downloadCacheMegabytes = downloadCacheMegabytes;
+    }
+
+    public long getDownloadRangeMegabytes() {
+        return downloadRangeMegabytes;
+    }
+
+    public void setDownloadRangeMegabytes(long downloadRangeMegabytes) {
+        this.downloadRangeMegabytes = downloadRangeMegabytes;
+    }
+
+    public int getDownloadRangeThreads() {
+        return downloadRangeThreads;
+    }
+
+    public void setDownloadRangeThreads(int downloadRangeThreads) {
+        this.downloadRangeThreads = downloadRangeThreads;
+    }
+
+    public int getTransactionTimeoutMinutes() {
+        return transactionTimeoutMinutes;
+    }
+
+    public void setTransactionTimeoutMinutes(int transactionTimeoutMinutes) {
+        this.transactionTimeoutMinutes = transactionTimeoutMinutes;
+    }
+}
@@ -15,39 +15,49 @@
 
 package org.entur.namtar.netex;
 
-import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobInfo;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.entur.namtar.metrics.PrometheusMetricsService;
 import org.entur.namtar.model.DatedServiceJourney;
 import org.entur.namtar.repository.blobstore.BlobStoreRepository;
 import org.entur.namtar.services.DatedServiceJourneyService;
-import org.rutebanken.netex.model.DayType;
-import org.rutebanken.netex.model.DayTypeAssignment;
-import org.rutebanken.netex.model.DayTypeRefStructure;
-import org.rutebanken.netex.model.DayTypeRefs_RelStructure;
-import org.rutebanken.netex.model.JourneyPattern;
-import org.rutebanken.netex.model.LineRefStructure;
-import org.rutebanken.netex.model.OperatingDay;
-import org.rutebanken.netex.model.OperatingDayRefStructure;
-import org.rutebanken.netex.model.Route;
-import org.rutebanken.netex.model.ServiceJourney;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import javax.xml.bind.JAXBElement;
+import javax.annotation.PreDestroy;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 import static org.entur.namtar.routes.api.MappingRoute.ET_CLIENT_NAME_HEADER;
 
@@ -59,16 +69,86 @@ public class NetexLoader {
     private final DatedServiceJourneyService datedServiceJourneyService;
     private final BlobStoreRepository repository;
 
+    private final PrometheusMetricsService metricsService;
+
     private final File tmpFileDirectory;
 
-    private Instant lastSuccessfulDataLoaded;
+    private final DownloadCache downloadCache;
+
+    /*
+     * Downloads ranges of large blobs concurrently - null when disabled
+     */
+    private final ExecutorService rangeDownloadExecutor;
+
+    private final NetexParserMode parserMode;
+
+    private final ExecutorService parseExecutor;
+
+    /*
+     * Downloads the next files while the current file is processed
+     */
+    private final ExecutorService downloadExecutor;
+    private final int prefetchCount;
+
+    /*
+     * Imports codespaces concurrently - null when all files are imported in sequence
+     */
+    private final ExecutorService importExecutor;
+
+    private final SharedDataCache sharedDataCache;
+
+    private final ImportedEntryRegistry importedEntryRegistry;
+
+    private final TransactionTemplate transactionTemplate;
+
+    /*
+     * Departures outside the window are not imported - negative values disable the limit
+     */
+    private final int importWindowDaysBefore;
+    private final int importWindowDaysAfter;
+
+    /*
+     * Departures from completed line-files are committed with a checkpoint when at least this many are collected,
+     * so that an interrupted import can be resumed - 0 commits each file in a single transaction
+     */
+    private final int checkpointDepartures;
+
+    private volatile Instant lastSuccessfulDataLoaded;
 
     public NetexLoader(@Autowired DatedServiceJourneyService datedServiceJourneyService,
                        @Autowired BlobStoreRepository repository,
+                       @Autowired PrometheusMetricsService metricsService,
+                       @Autowired PlatformTransactionManager transactionManager,
+                       @Autowired NetexImportProperties importProperties,
                        @Value("${namtar.tempfile.directory:/tmp}") String tmpFileDirectoryPath) {
         log.info("Initializing NetexLoader");
         this.datedServiceJourneyService = datedServiceJourneyService;
         this.repository = repository;
+        this.metricsService = metricsService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        // The key filter only rescans rows created within the timeout, so no import may commit later than that
+        this.transactionTemplate.setTimeout(importProperties.getTransactionTimeoutMinutes() * 60);
+        this.importWindowDaysBefore = importProperties.getWindowDaysBefore();
+        this.importWindowDaysAfter = importProperties.getWindowDaysAfter();
+        this.checkpointDepartures = importProperties.getCheckpointDepartures();
+        this.parserMode = NetexParserMode.fromConfig(importProperties.getParserMode());
+        long sharedDataCacheSize = importProperties.getSharedDataCacheSize();
+        this.sharedDataCache = sharedDataCacheSize > 0 ? new SharedDataCache(sharedDataCacheSize) : null;
+        this.importedEntryRegistry = importProperties.isIncremental() ? new ImportedEntryRegistry() : null;
+        int parserThreads = importProperties.getParserThreads();
+        if (parserThreads <= 0) {
+            parserThreads = Runtime.getRuntime().availableProcessors();
+        }
+        this.parseExecutor = Executors.newFixedThreadPool(parserThreads,
+                new ThreadFactoryBuilder().setNameFormat("netex-parser-%d").setDaemon(true).build());
+        log.info("Parsing NeTEx-files with {} using {} threads", this.parserMode, parserThreads);
+        this.prefetchCount = Math.max(importProperties.getPrefetchCount(), 0);
+        int importThreads = Math.max(importProperties.getCodespaceThreads(), 1);
+        this.importExecutor = importThreads > 1 ? Executors.newFixedThreadPool(importThreads,
+                new ThreadFactoryBuilder().setNameFormat("netex-import-%d").setDaemon(true).build()) : null;
+        log.info("Importing up to {} codespaces concurrently", importThreads);
+        this.downloadExecutor = Executors.newFixedThreadPool(Math.max(this.prefetchCount, 1) * importThreads,
+                new ThreadFactoryBuilder().setNameFormat("netex-download-%d").setDaemon(true).build());
         tmpFileDirectory = new File(tmpFileDirectoryPath);
         if (!tmpFileDirectory.exists()) {
             boolean created = tmpFileDirectory.mkdirs();
@@ -76,6 +156,16 @@ public class NetexLoader {
         } else {
             log.info("Using tmp-directory with path {}, already existed.", tmpFileDirectoryPath);
         }
+        int downloadRangeThreads = importProperties.getDownloadRangeThreads();
+        long downloadRangeMegabytes = importProperties.getDownloadRangeMegabytes();
+        this.rangeDownloadExecutor = downloadRangeThreads > 0 && downloadRangeMegabytes > 0 ? Executors.newFixedThreadPool(downloadRangeThreads,
+                new ThreadFactoryBuilder().setNameFormat("netex-range-download-%d").setDaemon(true).build()) : null;
+        try {
+            downloadCache = new DownloadCache(repository, new File(tmpFileDirectory, "netex-download-cache").toPath(),
+                    importProperties.getDownloadCacheMegabytes() * 1024 * 1024, rangeDownloadExecutor, downloadRangeMegabytes * 1024 * 1024);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not initialize download cache in " + tmpFileDirectoryPath, e);
+        }
         lastSuccessfulDataLoaded = Instant.now();
         log.info("Initializing NetexLoader - done");
     }
@@ -83,45 +173,50 @@ public class NetexLoader {
     private static final DateTimeFormatter dateFormatter = DateTimeFormatter.ISO_LOCAL_DATE;
     private static final DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("HH:mm");
 
-    private boolean isLoadingData;
+    private final AtomicBoolean isLoadingData = new AtomicBoolean();
+
+    public void loadNetexFromBlobStore(Iterator<BlobInfo> blobIterator) throws IOException {
+        loadNetex(() -> blobIterator);
+    }
+
+    /**
+     * Imports blobs requested through /internal/import. The requests are only taken once no other import is running
+     * on this pod, so that none are lost.
+     */
+    public void loadRequestedNetex(Supplier<Iterator<BlobInfo>> requestedBlobs) throws IOException {
+        loadNetex(requestedBlobs);
+    }
 
-    public void loadNetexFromBlobStore(Iterator<Blob> blobIterator) throws IOException {
-        if (!isLoadingData) {
-            isLoadingData = true;
-            log.info("Loading netex-files");
+    /*
+     * Imports the blobs in the given order, skipping those already processed - unless an import is already running,
+     * as listed and requested imports may be triggered at the same time
+     */
+    private void loadNetex(Supplier<Iterator<BlobInfo>> blobs) throws IOException {
+        if (isLoadingData.compareAndSet(false, true)) {
             try {
+                List<String> blobNames = new ArrayList<>();
+                blobs.get().forEachRemaining(blob -> blobNames.add(blob.getName()));
+                if (blobNames.isEmpty()) {
+                    return;
+                }
+                log.info("Loading netex-files");
                 MDC.put(ET_CLIENT_NAME_HEADER, "namtar-internal");
-                int counter = 0;
+                int counter;
                 long t1 = System.currentTimeMillis();
-                while (blobIterator.hasNext()) {
-                    Blob next = blobIterator.next();
-                    String name = next.getName();
-                    String filename = name.substring(name.lastIndexOf('/') + 1);
-
-                    if (!datedServiceJourneyService.getStorageService().isAlreadyProcessed(filename)) {
-
-                        if (!filename.isEmpty()) {
-                            counter++;
 
-                            datedServiceJourneyService.getStorageService().setFileStatus(filename, false);
+                datedServiceJourneyService.getStorageService().refreshKeyFilter();
 
-                            long download = System.currentTimeMillis();
-                            String absolutePath = getFileFromInputStream(repository.getBlob(name), filename, true);
-                            long process = System.currentTimeMillis();
-                            processNetexFile(absolutePath, filename);
-                            long done = System.currentTimeMillis();
-
-                            datedServiceJourneyService.getStorageService().setFileStatus(filename, true);
-
-                            log.info("{} read - download {} ms, process {} ms", name, (process - download), (done - process));
-                            lastSuccessfulDataLoaded = Instant.now();
-                        }
-                    }
-                    blobIterator.remove();
+                if (importExecutor != null) {
+                    counter = importCodespacesConcurrently(blobNames);
+                } else {
+                    counter = importBlobs(blobNames.iterator());
                 }
                 log.info("Loaded {} netex-files in {} ms", counter, ( System.currentTimeMillis()-t1 ));
+                if (sharedDataCache != null) {
+                    log.info("Shared data cache: {} entries, {}", sharedDataCache.size(), sharedDataCache.getStats());
+                }
             } finally {
-                isLoadingData = false;
+                isLoadingData.set(false);
                 MDC.remove(ET_CLIENT_NAME_HEADER);
             }
         } else {
@@ -129,6 +224,164 @@ public class NetexLoader {
         }
     }
 
+    public boolean isLoadingData() {
+        return isLoadingData.get();
+    }
+
+    /**
+     * @return true if the blob has already been imported, or is not a file
+     */
+    public boolean isAlreadyProcessed(String blobName) {
+        String filename = blobName.substring(blobName.lastIndexOf('/') + 1);
+        return filename.isEmpty() || datedServiceJourneyService.getStorageService().isAlreadyProcessed(filename);
+    }
+
+    /**
+     * Imports a single blob, unless it has already been imported
+     *
+     * @return true if the blob was imported
+     */
+    public boolean importBlob(String blobName) throws IOException {
+        return importBlobs(List.of(blobName).iterator()) > 0;
+    }
+
+    /**
+     * Imports the blobs in the given order, with up to prefetchCount files downloaded ahead
+     *
+     * @return number of imported files
+     */
+    private int importBlobs(Iterator<String> blobNames) throws IOException {
+        int counter = 0;
+        Deque<PendingDownload> pendingDownloads = new ArrayDeque<>();
+        try {
+            while (true) {
+                while (pendingDownloads.size() <= prefetchCount && blobNames.hasNext()) {
+                    String name = blobNames.next();
+                    String filename = name.substring(name.lastIndexOf('/') + 1);
+
+                    if (!isAlreadyProcessed(name)) {
+                        pendingDownloads.add(new PendingDownload(name, filename, downloadExecutor.submit(() -> download(name))));
+                    }
+                }
+
+                PendingDownload pending = pendingDownloads.poll();
+                if (pending == null) {
+                    break;
+                }
+                counter++;
+
+                datedServiceJourneyService.getStorageService().setFileStatus(pending.filename, false);
+
+                long download = System.currentTimeMillis();
+                long process;
+                try {
+                    Path file = pending.await();
+                    process = System.currentTimeMillis();
+                    try {
+                        // Also marks the file as processed
+                        processNetexFile(file.toString(), pending.filename);
+                    } finally {
+                        downloadCache.release(file);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    markFailed(pending.filename, e);
+                    throw e;
+                }
+                long done = System.currentTimeMillis();
+
+                log.info("{} read - waited {} ms for download, process {} ms", pending.name, (process - download), (done - process));
+                lastSuccessfulDataLoaded = Instant.now();
+            }
+        } finally {
+            for (PendingDownload pending : pendingDownloads) {
+                pending.discard();
+            }
+        }
+        return counter;
+    }
+
+    /*
+     * Counts the failure, so that the import watermark is only moved past files that really have been attempted.
+     * Imports interrupted by a shutdown are not counted.
+     */
+    private void markFailed(String filename, Exception failure) {
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        try {
+            datedServiceJourneyService.getStorageService().markFileFailed(filename);
+        } catch (RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Files from different codespaces never match the same DatedServiceJourneys, so each codespace is imported
+     * on its own worker - keeping the listed order within each codespace.
+     *
+     * @return number of imported files
+     */
+    private int importCodespacesConcurrently(List<String> blobNames) throws IOException {
+        Map<String, List<String>> blobsByCodespace = new LinkedHashMap<>();
+        for (String blobName : blobNames) {
+            blobsByCodespace.computeIfAbsent(getCodespace(blobName), k -> new ArrayList<>()).add(blobName);
+        }
+
+        Map<String, Future<Integer>> imports = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> codespaceBlobs : blobsByCodespace.entrySet()) {
+            imports.put(codespaceBlobs.getKey(), importExecutor.submit(() -> {
+                MDC.put(ET_CLIENT_NAME_HEADER, "namtar-internal");
+                try {
+                    return importBlobs(codespaceBlobs.getValue().iterator());
+                } finally {
+                    MDC.remove(ET_CLIENT_NAME_HEADER);
+                }
+            }));
+        }
+
+        int counter = 0;
+        IOException firstFailure = null;
+        for (Map.Entry<String, Future<Integer>> codespaceImport : imports.entrySet()) {
+            try {
+                counter += codespaceImport.getValue().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                imports.values().forEach(f -> f.cancel(true));
+                throw new IOException("Interrupted while importing netex-files", e);
+            } catch (ExecutionException e) {
+                log.error("Import of codespace {} failed", codespaceImport.getKey(), e.getCause());
+                if (firstFailure == null) {
+                    firstFailure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        }
+        if (firstFailure != null) {
+            throw firstFailure;
+        }
+        return counter;
+    }
+
+    /*
+     * Files are named by codespace, e.g. rb_rut-aggregated-netex.zip
+     */
+    public static String getCodespace(String blobName) {
+        String filename = blobName.substring(blobName.lastIndexOf('/') + 1);
+        int separator = filename.indexOf('-');
+        return separator > 0 ? filename.substring(0, separator) : filename;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        parseExecutor.shutdownNow();
+        downloadExecutor.shutdownNow();
+        if (rangeDownloadExecutor != null) {
+            rangeDownloadExecutor.shutdownNow();
+        }
+        if (importExecutor != null) {
+            importExecutor.shutdownNow();
+        }
+    }
+
     public Instant getLastSuccessfulDataLoaded() {
         return lastSuccessfulDataLoaded;
     }
@@ -136,27 +389,65 @@ public class NetexLoader {
     private void processNetexFile(String pathname, String sourceFileName) throws IOException {
         File file = new File(pathname);
         if (file.length() == 0) {
+            datedServiceJourneyService.getStorageService().setFileStatus(sourceFileName, true);
             return;
         }
-        NetexProcessor processor = new NetexProcessor(file);
-        datedServiceJourneyService.updateNextCreationNumber();
+        // Set when a previous import of the file was interrupted
+        String checkpoint = datedServiceJourneyService.getStorageService().getFileCheckpoint(sourceFileName);
+
+        ImportWindow importWindow = new ImportWindow(LocalDate.now(), importWindowDaysBefore, importWindowDaysAfter);
+
+        NetexProcessor processor = new NetexProcessor(file, new NetexProcessorOptions()
+                .parserMode(parserMode)
+                .parseExecutor(parseExecutor)
+                .sharedDataCache(sharedDataCache)
+                .importedEntryRegistry(importedEntryRegistry)
+                .resumeAfterEntry(checkpoint)
+                .importWindow(importWindow.toString()));
 
         long t1 = System.currentTimeMillis();
-        processor.loadFiles();
+        try {
+            processor.loadFiles();
+        } finally {
+            processor.close();
+        }
         log.info("Reading file {} took {} ms", pathname, (System.currentTimeMillis()-t1));
 
         t1 = System.currentTimeMillis();
         int departureCounter = 0;
-        int ignoreCounter = 0;
-        for (org.rutebanken.netex.model.ServiceJourney serviceJourney : processor.serviceJourneys) {
+        int candidateCounter = 0;
+        int createdCounter = 0;
+        List<DatedServiceJourney> candidates = new ArrayList<>();
+
+        // Repeated for every departure, so each distinct value is only created once per file
+        String publicationTimestamp = processor.publicationTimestamp.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        Map<LocalDateTime, String> departureDateDictionary = new HashMap<>();
+        Map<LocalTime, String> departureTimeDictionary = new HashMap<>();
+
+        int beforeWindowCounter = 0;
+        int afterWindowCounter = 0;
+        Iterator<Map.Entry<String, Integer>> lineFileEnds = processor.lineFileServiceJourneyEnds.entrySet().iterator();
+        Map.Entry<String, Integer> lineFileEnd = lineFileEnds.hasNext() ? lineFileEnds.next() : null;
+        for (int i = 0; i < processor.serviceJourneys.size(); i++) {
+
+            // All line-files before this ServiceJourney are complete, and may be committed
+            while (lineFileEnd != null && lineFileEnd.getValue() <= i) {
+                if (checkpointDepartures > 0 && candidates.size() >= checkpointDepartures) {
+                    candidateCounter += candidates.size();
+                    createdCounter += importDepartures(candidates, publicationTimestamp, sourceFileName, lineFileEnd.getKey());
+                    candidates = new ArrayList<>();
+                }
+                lineFileEnd = lineFileEnds.hasNext() ? lineFileEnds.next() : null;
+            }
 
+            ServiceJourneyRecord serviceJourney = processor.serviceJourneys.get(i);
             try {
                 String serviceJourneyId = serviceJourney.getId();
                 Integer version = Integer.parseInt(serviceJourney.getVersion());
 
                 String lineRef = resolveLineRef(processor, serviceJourney);
 
-                String departureTime = serviceJourney.getPassingTimes().getTimetabledPassingTime().get(0).getDepartureTime().format(timeFormatter);
+                String departureTime = departureTimeDictionary.computeIfAbsent(serviceJourney.getDepartureTime(), time -> time.format(timeFormatter));
 
                 // TODO: Future support for more operators should rely on requirement and usage of ExternalVehicleJourneyRef - not PrivateCode
                 // e.g. serviceJourney.getExternalVehicleJourneyRef().getRef();
@@ -165,94 +456,144 @@ public class NetexLoader {
                     continue;
                 }
 
-                String privateCode = serviceJourney.getPrivateCode().getValue();
-
-                List<LocalDateTime> departureDates = new ArrayList<>();
-                if (serviceJourney.getDayTypes() != null) {
-                    DayTypeRefs_RelStructure dayTypes = serviceJourney.getDayTypes();
-                    departureCounter += dayTypes.getDayTypeRef().size();
-                    for (JAXBElement<? extends DayTypeRefStructure> dayTypeRef : dayTypes.getDayTypeRef()) {
+                String privateCode = serviceJourney.getPrivateCode();
 
-                        DayType dayType = processor.dayTypeById.get(dayTypeRef.getValue().getRef());
-                        DayTypeAssignment dayTypeAssignment = processor.dayTypeAssignmentByDayTypeId.get(dayType.getId());
+                // Sorted, and without duplicates when several DayTypes are valid on the same date
+                NavigableSet<LocalDateTime> departureDates = new TreeSet<>();
+                if (serviceJourney.getDayTypeRefs() != null) {
+                    for (String dayTypeRef : serviceJourney.getDayTypeRefs()) {
 
-                        if (dayTypeAssignment != null && dayTypeAssignment.getDate() != null) {
-                            LocalDateTime departureDate = dayTypeAssignment.getDate();
-                            departureDates.add(departureDate);
+                        DayTypeCalendar.DayTypeDates dayTypeDates = processor.getDayTypeDates(dayTypeRef);
+                        if (dayTypeDates != null) {
+                            dayTypeDates.forEach(date -> departureDates.add(date.atStartOfDay()));
                         }
                     }
                 } else {
-                    final Set<org.rutebanken.netex.model.DatedServiceJourney> datedServiceJourneys = processor.datedServiceJourneysByServiceJourney.get(serviceJourneyId);
-                    for (org.rutebanken.netex.model.DatedServiceJourney datedServiceJourney : datedServiceJourneys) {
-                        final OperatingDayRefStructure operatingDayRef = datedServiceJourney.getOperatingDayRef();
-                        final OperatingDay operatingDay = processor.operatingDayByOperatingDayId.get(operatingDayRef.getRef());
-                        final LocalDateTime departureDate = operatingDay.getCalendarDate();
+                    final Set<DatedServiceJourneyRecord> datedServiceJourneys = processor.datedServiceJourneysByServiceJourney.get(serviceJourneyId);
+                    for (DatedServiceJourneyRecord datedServiceJourney : datedServiceJourneys) {
+                        final LocalDateTime departureDate = processor.operatingDayDateByOperatingDayId.get(datedServiceJourney.getOperatingDayRef());
                         departureDates.add(departureDate);
 
                     }
                 }
+                departureCounter += departureDates.size();
+
+                // Dropped before any lookups are made
+                beforeWindowCounter += importWindow.dropBefore(departureDates);
+                afterWindowCounter += importWindow.dropAfter(departureDates);
 
                 for (LocalDateTime departureDateTime : departureDates) {
                     final String datedServiceJourneyId = processor.getDatedServiceJourneyId(departureDateTime, serviceJourneyId);
 
-                    final String departureDate = departureDateTime.format(dateFormatter);
+                    final String departureDate = departureDateDictionary.computeIfAbsent(departureDateTime, date -> date.format(dateFormatter));
 
-                    DatedServiceJourney currentServiceJourney = new DatedServiceJourney(datedServiceJourneyId, serviceJourneyId, version, privateCode, lineRef, departureDate, departureTime);
-
-
-                    DatedServiceJourney datedServiceJourney = datedServiceJourneyService.createDatedServiceJourney(currentServiceJourney, processor.publicationTimestamp, sourceFileName);
-                    if (datedServiceJourney != null) { // If null, it already exists and should not be added
-                        datedServiceJourneyService.getStorageService().addDatedServiceJourney(datedServiceJourney);
-                    } else {
-                        ignoreCounter++;
-                    }
+                    candidates.add(new DatedServiceJourney(datedServiceJourneyId, serviceJourneyId, version, privateCode, lineRef, departureDate, departureTime));
                 }
             } catch (NullPointerException npe) {
                 log.warn("Caught NullPointerException for ServiceJourney {} from file {}, continuing", serviceJourney.getId(), sourceFileName);
             }
         }
 
-        log.info("Added {} ServiceJourneys with {} departures in {} ms. {} already existed.", processor.serviceJourneys.size(), departureCounter, (System.currentTimeMillis()-t1), ignoreCounter);
+        candidateCounter += candidates.size();
+        createdCounter += importDepartures(candidates, publicationTimestamp, sourceFileName, null);
+        int ignoreCounter = candidateCounter - createdCounter;
+
+        log.info("Added {} ServiceJourneys with {} departures in {} ms. {} already existed, {} before and {} after import window.",
+                processor.serviceJourneys.size(), departureCounter, (System.currentTimeMillis()-t1), ignoreCounter, beforeWindowCounter, afterWindowCounter);
+        metricsService.markDeparturesOutsideImportWindow(processor.codespace, true, beforeWindowCounter);
+        metricsService.markDeparturesOutsideImportWindow(processor.codespace, false, afterWindowCounter);
+
+        if (importedEntryRegistry != null) {
+            importedEntryRegistry.register(processor.codespace, processor.sharedDataFingerprint, processor.lineFileFingerprints);
+        }
+    }
+
+    /*
+     * The departures are committed together with the checkpoint, or with the file status when checkpoint is null,
+     * so an interrupted import leaves nothing behind that is not covered by the checkpoint
+     *
+     * @return the number of departures that were created
+     */
+    private int importDepartures(List<DatedServiceJourney> candidates, String publicationTimestamp, String sourceFileName, String checkpoint) {
+        return transactionTemplate.execute(status -> {
+            // Departures that already exist are left out, and should not be added
+            List<DatedServiceJourney> created = datedServiceJourneyService.createDatedServiceJourneys(candidates, publicationTimestamp, sourceFileName);
+            datedServiceJourneyService.getStorageService().addDatedServiceJourneys(created);
+            if (checkpoint != null) {
+                datedServiceJourneyService.getStorageService().setFileCheckpoint(sourceFileName, checkpoint);
+            } else {
+                datedServiceJourneyService.getStorageService().setFileStatus(sourceFileName, true);
+            }
+            return created.size();
+        });
     }
 
-    private String resolveLineRef(NetexProcessor processor, ServiceJourney serviceJourney) {
+    private String resolveLineRef(NetexProcessor processor, ServiceJourneyRecord serviceJourney) {
 
         if (serviceJourney != null) {
             if (serviceJourney.getJourneyPatternRef() != null) {
-                String journeyPatternRef = serviceJourney.getJourneyPatternRef().getValue().getRef();
+                String journeyPatternRef = serviceJourney.getJourneyPatternRef();
 
-                JourneyPattern journeyPattern = processor.journeyPatternsById.get(journeyPatternRef);
-                String routeRefValue = journeyPattern.getRouteRef().getRef();
+                JourneyPatternRecord journeyPattern = processor.journeyPatternsById.get(journeyPatternRef);
+                String routeRefValue = journeyPattern.getRouteRef();
 
-                Route route = processor.routesById.get(routeRefValue);
-                JAXBElement<? extends LineRefStructure> lineRef = route.getLineRef();
-                return lineRef.getValue().getRef();
+                RouteRecord route = processor.routesById.get(routeRefValue);
+                return route.getLineRef();
             }
             log.warn("Unable to find LineRef from ServiceJourney with id [{}]", serviceJourney.getId());
         }
-        log.info("ServiceJourney was null in file {}", processor.zipFile.getName());
+        log.info("ServiceJourney was null in file {}", processor.zipSource.getName());
         return null;
     }
 
-    private String getFileFromInputStream(InputStream inputStream, String fileName, boolean closeInputStreamWhenRead) throws IOException {
-        File file = new File(tmpFileDirectory, fileName);
-        if (file.exists() && file.length() > 0) {
-            return file.getAbsolutePath();
+    /*
+     * Downloads not picked up after being cancelled are released right away
+     */
+    private Path download(String blobName) throws IOException {
+        Path file = downloadCache.download(blobName);
+        if (Thread.currentThread().isInterrupted()) {
+            downloadCache.release(file);
+            throw new InterruptedIOException("Download of " + blobName + " cancelled");
         }
-        // opens an output stream to createDatedServiceJourney into file
-        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+        return file;
+    }
 
-            int bytesRead;
-            byte[] buffer = new byte[2048];
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-            }
+    private final class PendingDownload {
+        private final String name;
+        private final String filename;
+        private final Future<Path> download;
+
+        private PendingDownload(String name, String filename, Future<Path> download) {
+            this.name = name;
+            this.filename = filename;
+            this.download = download;
+        }
 
-            if (closeInputStreamWhenRead) {
-                inputStream.close();
+        /**
+         * @return the downloaded file, which must be released when processed
+         */
+        private Path await() throws IOException {
+            try {
+                return download.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading " + name, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Failed to download " + name, e.getCause());
             }
         }
 
-        return file.getAbsolutePath();
+        private void discard() {
+            if (!download.cancel(true) && download.isDone()) {
+                try {
+                    downloadCache.release(download.get());
+                } catch (InterruptedException | ExecutionException e) {
+                    // Nothing downloaded
+                }
+            }
+        }
     }
 }
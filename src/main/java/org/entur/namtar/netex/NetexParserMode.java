@@ -0,0 +1,41 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+/**
+ * How the xml-files in a NeTEx-zip are read by the {@link NetexProcessor}.
+ */
+public enum NetexParserMode {
+
+    /**
+     * Unmarshals the complete PublicationDelivery with JAXB.
+     */
+    JAXB,
+
+    /**
+     * Streams the file with StAX, and only extracts the elements and fields needed to create DatedServiceJourneys.
+     */
+    STAX,
+
+    /**
+     * Skips unused frames with StAX, and only unmarshals ServiceFrame, ServiceCalendarFrame and TimetableFrame with JAXB.
+     */
+    JAXB_FILTERED;
+
+    static NetexParserMode fromConfig(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+}
@@ -15,13 +15,15 @@
 
 package org.entur.namtar.netex;
 
-import org.apache.commons.io.IOUtils;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import org.rutebanken.netex.model.Common_VersionFrameStructure;
 import org.rutebanken.netex.model.CompositeFrame;
 import org.rutebanken.netex.model.DataManagedObjectStructure;
 import org.rutebanken.netex.model.DatedServiceJourney;
 import org.rutebanken.netex.model.DayType;
 import org.rutebanken.netex.model.DayTypeAssignment;
+import org.rutebanken.netex.model.DayTypeRefStructure;
 import org.rutebanken.netex.model.DayTypes_RelStructure;
 import org.rutebanken.netex.model.JourneyPattern;
 import org.rutebanken.netex.model.JourneyPatternsInFrame_RelStructure;
@@ -30,16 +32,19 @@ import org.rutebanken.netex.model.Journey_VersionStructure;
 import org.rutebanken.netex.model.JourneysInFrame_RelStructure;
 import org.rutebanken.netex.model.LinkSequence_VersionStructure;
 import org.rutebanken.netex.model.OperatingDay;
-import org.rutebanken.netex.model.OperatingPeriod;
+import org.rutebanken.netex.model.OperatingPeriod_VersionStructure;
+import org.rutebanken.netex.model.PropertyOfDay;
 import org.rutebanken.netex.model.PublicationDeliveryStructure;
 import org.rutebanken.netex.model.Route;
 import org.rutebanken.netex.model.RoutesInFrame_RelStructure;
-import org.rutebanken.netex.model.ServiceAlterationEnumeration;
 import org.rutebanken.netex.model.ServiceCalendarFrame;
 import org.rutebanken.netex.model.ServiceFrame;
 import org.rutebanken.netex.model.ServiceJourney;
 import org.rutebanken.netex.model.TimetableFrame;
+import org.rutebanken.netex.model.TimetabledPassingTime;
+import org.rutebanken.netex.model.UicOperatingPeriod;
 import org.rutebanken.netex.model.VersionFrameDefaultsStructure;
+import org.rutebanken.netex.model.VersionOfObjectRefStructure;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,46 +52,92 @@ import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
-import java.io.ByteArrayInputStream;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
-class NetexProcessor {
+class NetexProcessor implements Closeable {
 
     private static final Logger logger = LoggerFactory.getLogger(NetexProcessor.class);
 
     private static JAXBContext jaxbContext;
     private String timeZone;
 
+    private final NetexParserMode parserMode;
+
+    private final ExecutorService parseExecutor;
+
+    private final SharedDataCache sharedDataCache;
+
+    private final ImportedEntryRegistry importedEntryRegistry;
+
+    private final String resumeAfterEntry;
+    private final String importWindow;
+
     static DateTimeFormatter dateFormatter = DateTimeFormatter.ISO_LOCAL_DATE;
     static DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("HH:mm");
 
     LocalDateTime publicationTimestamp;
 
-    Map<String, JourneyPattern> journeyPatternsById;
-    Map<String, Route> routesById;
-    List<ServiceJourney> serviceJourneys;
+    Map<String, JourneyPatternRecord> journeyPatternsById;
+    Map<String, RouteRecord> routesById;
+    List<ServiceJourneyRecord> serviceJourneys;
     Map<String, String> serviceJourneyDateToDatedServiceJourney;
 
-    Map<String, Set<DatedServiceJourney>> datedServiceJourneysByServiceJourney;
+    Map<String, Set<DatedServiceJourneyRecord>> datedServiceJourneysByServiceJourney;
+
+    Map<String, DayTypeRecord> dayTypesById;
+    Map<String, List<DayTypeAssignmentRecord>> dayTypeAssignmentsByDayTypeId;
+    Map<String, OperatingPeriodRecord> operatingPeriodsById;
+    Map<String, LocalDate> operatingDayDatesById;
+    Map<String, LocalDateTime> operatingDayDateByOperatingDayId;
+
+    DayTypeCalendar dayTypeCalendar;
+
+    final ZipSource zipSource;
 
-    Map<String, DayType> dayTypeById;
-    Map<String, DayTypeAssignment> dayTypeAssignmentByDayTypeId;
-    Map<String, OperatingDay> operatingDayByOperatingDayId;
-    Map<String, OperatingPeriod> operatingPeriodById;
-    Map<String, Boolean> dayTypeAvailable;
+    /*
+     * Scoped to the import of a single zip, so that nothing is retained after the import
+     */
+    final Interner<String> interner = Interners.newStrongInterner();
 
-    ZipFile zipFile;
+    /*
+     * Identifies the imported data for incremental imports - see ImportedEntryRegistry
+     */
+    String codespace;
+    String sharedDataFingerprint;
+    final Map<String, String> lineFileFingerprints = new LinkedHashMap<>();
+    int unchangedLineFileCount;
+
+    /*
+     * Parsed line-files in zip-order, with the index in serviceJourneys following the last ServiceJourney of each
+     * file - used to checkpoint imports of large zips, see NetexLoader
+     */
+    final Map<String, Integer> lineFileServiceJourneyEnds = new LinkedHashMap<>();
+    int resumedLineFileCount;
 
     static {
         if (jaxbContext == null) {
@@ -98,55 +149,263 @@ class NetexProcessor {
         }
     }
 
-    public NetexProcessor(File file) throws IOException {
-        zipFile = new ZipFile(file, ZipFile.OPEN_READ);
+    public NetexProcessor(File file, NetexProcessorOptions options) throws IOException {
+        this.parserMode = options.parserMode;
+        this.parseExecutor = options.parseExecutor;
+        this.sharedDataCache = options.sharedDataCache;
+        this.importedEntryRegistry = options.importedEntryRegistry;
+        this.resumeAfterEntry = options.resumeAfterEntry;
+        this.importWindow = options.importWindow;
+        zipSource = ZipSource.open(file);
         journeyPatternsById = new HashMap<>();
         routesById = new HashMap<>();
         serviceJourneys = new ArrayList<>();
         serviceJourneyDateToDatedServiceJourney = new HashMap<>();
         datedServiceJourneysByServiceJourney = new HashMap<>();
-        dayTypeById = new HashMap<>();
-        dayTypeAssignmentByDayTypeId = new HashMap<>();
-        operatingDayByOperatingDayId = new HashMap<>();
-        operatingPeriodById = new HashMap<>();
-        dayTypeAvailable = new HashMap<>();
+        dayTypesById = new HashMap<>();
+        dayTypeAssignmentsByDayTypeId = new HashMap<>();
+        operatingPeriodsById = new HashMap<>();
+        operatingDayDatesById = new HashMap<>();
+        operatingDayDateByOperatingDayId = new HashMap<>();
     }
 
-    private Unmarshaller createUnmarshaller() throws JAXBException {
+    /*
+     * Unmarshallers are not thread-safe, but can be reused for files parsed on the same thread
+     */
+    private static final ThreadLocal<Unmarshaller> unmarshallers = ThreadLocal.withInitial(() -> {
+        try {
+            return createUnmarshaller();
+        } catch (JAXBException e) {
+            throw new RuntimeException("Could not create Unmarshaller", e);
+        }
+    });
+
+    /*
+     * The frames that are unmarshalled in JAXB_FILTERED mode - all other frames are skipped
+     */
+    private static final Map<String, Class<? extends Common_VersionFrameStructure>> filteredFrameTypes = Map.of(
+            "ServiceFrame", ServiceFrame.class,
+            "ServiceCalendarFrame", ServiceCalendarFrame.class,
+            "TimetableFrame", TimetableFrame.class);
+
+    private static Unmarshaller createUnmarshaller() throws JAXBException {
         return jaxbContext.createUnmarshaller();
     }
 
     void loadFiles() {
 
         // Ensuring all "_[...]_shared_data.xml"-files are processed first
-        zipFile.stream()
+        List<ZipEntry> sharedEntries = zipSource.getEntries().stream()
                 .filter(entry -> entry.getName().startsWith("_"))
                 .filter(entry -> entry.getName().endsWith(  ".xml"))
-                .forEach(entry -> loadFile(entry, zipFile));
+                .collect(Collectors.toList());
+
+        codespace = resolveCodespace(sharedEntries);
+
+        sharedEntries.forEach(entry -> mergeEntryData(loadSharedFile(entry)));
+        sharedDataFingerprint = resolveSharedDataFingerprint(sharedEntries);
+        if (sharedDataFingerprint != null && importWindow != null) {
+            // Departures dropped by a previous window may be inside this one
+            sharedDataFingerprint += "window=" + importWindow + ";";
+        }
 
-        zipFile.stream()
+        List<ZipEntry> allLineEntries = zipSource.getEntries().stream()
                 .filter(entry -> !entry.getName().startsWith("_"))
                 .filter(entry -> entry.getName().endsWith(  ".xml"))
-                .forEach(entry -> loadFile(entry, zipFile));
+                .collect(Collectors.toList());
+
+        int resumeIndex = 0;
+        if (resumeAfterEntry != null) {
+            for (int i = 0; i < allLineEntries.size(); i++) {
+                if (allLineEntries.get(i).getName().equals(resumeAfterEntry)) {
+                    resumeIndex = i + 1;
+                    break;
+                }
+            }
+            if (resumeIndex == 0) {
+                logger.warn("Checkpoint {} not found in {} - importing all line-files", resumeAfterEntry, zipSource.getName());
+            }
+        }
+
+        List<ZipEntry> lineEntries = new ArrayList<>();
+        for (int i = 0; i < allLineEntries.size(); i++) {
+            ZipEntry entry = allLineEntries.get(i);
+
+            String fingerprint = ZipSource.getFingerprint(entry);
+            if (fingerprint != null) {
+                lineFileFingerprints.put(entry.getName(), fingerprint);
+            }
+            if (i < resumeIndex) {
+                resumedLineFileCount++;
+            } else if (importedEntryRegistry != null &&
+                    importedEntryRegistry.isUnchanged(codespace, sharedDataFingerprint, entry.getName(), fingerprint)) {
+                unchangedLineFileCount++;
+            } else {
+                lineEntries.add(entry);
+            }
+        }
+
+        if (resumedLineFileCount > 0) {
+            logger.info("Resuming import of {} after {} previously imported line-files", zipSource.getName(), resumedLineFileCount);
+        }
+        if (unchangedLineFileCount > 0) {
+            logger.info("Skipping {} unchanged line-files for codespace {} in {}", unchangedLineFileCount, codespace, zipSource.getName());
+        }
+
+        if (parseExecutor == null) {
+            lineEntries.forEach(entry -> mergeLineFile(entry, loadFile(entry)));
+        } else {
+            loadFilesConcurrently(lineEntries);
+        }
+
+        dayTypeCalendar = new DayTypeCalendar(dayTypesById, dayTypeAssignmentsByDayTypeId, operatingPeriodsById, operatingDayDatesById);
     }
 
-    private byte[] entryAsBytes(ZipFile zipFile, ZipEntry entry) {
+    /*
+     * Shared data is complete at this point, and is only read while the line-files are parsed. Each file is parsed
+     * into its own NetexEntryData, which are merged in zip-order when all files are done.
+     */
+    private void loadFilesConcurrently(List<ZipEntry> entries) {
+        List<Future<NetexEntryData>> futures = new ArrayList<>(entries.size());
         try {
-            return IOUtils.toByteArray(zipFile.getInputStream(entry));
-        } catch (IOException e) {
-            throw new RuntimeException(e.getMessage(), e);
+            for (ZipEntry entry : entries) {
+                futures.add(parseExecutor.submit(() -> loadFile(entry)));
+            }
+
+            List<NetexEntryData> parsedEntries = new ArrayList<>(futures.size());
+            for (Future<NetexEntryData> future : futures) {
+                parsedEntries.add(future.get());
+            }
+
+            for (int i = 0; i < entries.size(); i++) {
+                mergeLineFile(entries.get(i), parsedEntries.get(i));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing file '" + zipSource.getName() + "'", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            futures.forEach(future -> future.cancel(true));
         }
     }
 
-    private void loadFile(ZipEntry entry, ZipFile zipFile) {
-        try {
-            byte[] bytesArray = entryAsBytes(zipFile, entry);
+    /*
+     * Codespace from the first "_[codespace]_shared_data.xml"-file
+     */
+    private static String resolveCodespace(List<ZipEntry> sharedEntries) {
+        for (ZipEntry entry : sharedEntries) {
+            String name = entry.getName();
+            int end = name.indexOf('_', 1);
+            if (end > 1 && name.endsWith("_shared_data.xml")) {
+                return name.substring(1, end);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Line-files depend on the shared data, so all shared files are part of the fingerprint of each line-file
+     */
+    private static String resolveSharedDataFingerprint(List<ZipEntry> sharedEntries) {
+        StringBuilder fingerprint = new StringBuilder();
+        for (ZipEntry entry : sharedEntries) {
+            String entryFingerprint = ZipSource.getFingerprint(entry);
+            if (entryFingerprint == null) {
+                return null;
+            }
+            fingerprint.append(entry.getName()).append('=').append(entryFingerprint).append(';');
+        }
+        return fingerprint.toString();
+    }
+
+    private NetexEntryData loadSharedFile(ZipEntry entry) {
+        String fingerprint = sharedDataCache != null ? ZipSource.getFingerprint(entry) : null;
+        if (fingerprint == null) {
+            return loadFile(entry);
+        }
+        // Identical files from different codespaces are kept apart, as the parsed data includes e.g. the publication timestamp
+        String key = codespace + "/" + entry.getName() + "/" + fingerprint;
 
-            PublicationDeliveryStructure value = parseXmlDoc(bytesArray);
+        NetexEntryData entryData = sharedDataCache.get(key);
+        if (entryData != null) {
+            logger.info("Reusing previously parsed {} from {}", entry.getName(), zipSource.getName());
+            return entryData;
+        }
+
+        entryData = loadFile(entry);
+
+        // Data that depends on other shared files can not be reused on its own
+        if (entryData.isSelfContained()) {
+            entryData.detachFromProcessor();
+            sharedDataCache.put(key, entryData);
+        }
+        return entryData;
+    }
+
+    private void mergeLineFile(ZipEntry entry, NetexEntryData entryData) {
+        mergeEntryData(entryData);
+        lineFileServiceJourneyEnds.put(entry.getName(), serviceJourneys.size());
+    }
+
+    private void mergeEntryData(NetexEntryData entryData) {
+        if (entryData.publicationTimestamp != null) {
+            publicationTimestamp = entryData.publicationTimestamp;
+        }
+        if (entryData.timeZone != null) {
+            setTimeZone(entryData.timeZone);
+        }
+        journeyPatternsById.putAll(entryData.journeyPatternsById);
+        routesById.putAll(entryData.routesById);
+        serviceJourneys.addAll(entryData.serviceJourneys);
+        serviceJourneyDateToDatedServiceJourney.putAll(entryData.serviceJourneyDateToDatedServiceJourney);
+        entryData.datedServiceJourneysByServiceJourney.forEach((serviceJourneyId, datedServiceJourneys) ->
+                datedServiceJourneysByServiceJourney.computeIfAbsent(serviceJourneyId, k -> new HashSet<>()).addAll(datedServiceJourneys));
+        dayTypesById.putAll(entryData.dayTypesById);
+        entryData.dayTypeAssignmentsByDayTypeId.forEach((dayTypeId, dayTypeAssignments) ->
+                dayTypeAssignmentsByDayTypeId.computeIfAbsent(dayTypeId, k -> new ArrayList<>()).addAll(dayTypeAssignments));
+        operatingPeriodsById.putAll(entryData.operatingPeriodsById);
+        operatingDayDatesById.putAll(entryData.operatingDayDatesById);
+        operatingDayDateByOperatingDayId.putAll(entryData.operatingDayDateByOperatingDayId);
+    }
+
+    private NetexEntryData loadFile(ZipEntry entry) {
+        NetexEntryData entryData = new NetexEntryData(this);
+        if (parserMode == NetexParserMode.STAX) {
+            loadFileWithStax(entry, entryData);
+        } else if (parserMode == NetexParserMode.JAXB_FILTERED) {
+            loadFileWithFilteredJaxb(entry, entryData);
+        } else {
+            loadFileWithJaxb(entry, entryData);
+        }
+        return entryData;
+    }
+
+    /*
+     * Entries are parsed directly from the inflating stream, without copying the uncompressed file to the heap first
+     */
+    private InputStream openEntry(ZipEntry entry) throws IOException {
+        return new BufferedInputStream(zipSource.getInputStream(entry));
+    }
+
+    private void loadFileWithStax(ZipEntry entry, NetexEntryData entryData) {
+        try (InputStream stream = openEntry(entry)) {
+            new NetexStaxReader(entryData).read(stream);
+        } catch (IOException | XMLStreamException e) {
+            throw new RuntimeException("Caught exception when processing file '" + entry + "'", e);
+        }
+    }
+
+    private void loadFileWithJaxb(ZipEntry entry, NetexEntryData entryData) {
+        try (InputStream stream = openEntry(entry)) {
+            PublicationDeliveryStructure value = parseXmlDoc(stream);
             List<JAXBElement<? extends Common_VersionFrameStructure>> compositeFrameOrCommonFrames = value
                     .getDataObjects().getCompositeFrameOrCommonFrame();
 
-            publicationTimestamp = value.getPublicationTimestamp();
+            entryData.publicationTimestamp = value.getPublicationTimestamp();
 
             for (JAXBElement frame : compositeFrameOrCommonFrames) {
 
@@ -159,34 +418,96 @@ class NetexProcessor {
                         fileTimeZone = frameDefaults.getDefaultLocale().getTimeZone();
                     }
 
-                    setTimeZone(fileTimeZone);
+                    entryData.setTimeZone(fileTimeZone);
 
                     List<JAXBElement<? extends Common_VersionFrameStructure>> commonFrames = cf
                             .getFrames().getCommonFrame();
                     for (JAXBElement commonFrame : commonFrames) {
-                        loadServiceFrames(commonFrame);
-                        loadRoutes(commonFrame);
-                        loadServiceCalendarFrames(commonFrame);
-                        loadTimeTableFrames(commonFrame);
+                        loadCommonFrame(commonFrame, entryData);
                     }
                 }
             }
-        } catch (JAXBException e) {
+        } catch (IOException | JAXBException e) {
             throw new RuntimeException("Caught exception when processing file '" + entry + "'", e);
         }
     }
 
-    private PublicationDeliveryStructure parseXmlDoc(byte[] bytesArray) throws JAXBException {
+    private PublicationDeliveryStructure parseXmlDoc(InputStream stream) throws JAXBException {
         JAXBElement<PublicationDeliveryStructure> root;
-        ByteArrayInputStream stream = new ByteArrayInputStream(bytesArray);
 
-        root = (JAXBElement<PublicationDeliveryStructure>) createUnmarshaller().unmarshal(stream);
+        root = (JAXBElement<PublicationDeliveryStructure>) unmarshallers.get().unmarshal(stream);
 
         return root.getValue();
     }
 
+    private void loadCommonFrame(JAXBElement commonFrame, NetexEntryData entryData) {
+        loadServiceFrames(commonFrame, entryData);
+        loadRoutes(commonFrame, entryData);
+        loadServiceCalendarFrames(commonFrame, entryData);
+        loadTimeTableFrames(commonFrame, entryData);
+    }
+
+    private void loadFileWithFilteredJaxb(ZipEntry entry, NetexEntryData entryData) {
+        try (InputStream stream = openEntry(entry)) {
+            XMLStreamReader reader = NetexStaxReader.createXMLStreamReader(stream);
+            try {
+                Unmarshaller unmarshaller = unmarshallers.get();
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if ("PublicationTimestamp".equals(name)) {
+                            entryData.publicationTimestamp = NetexStaxReader.parseDateTime(reader.getElementText());
+                        } else if ("CompositeFrame".equals(name)) {
+                            loadFilteredCompositeFrame(reader, unmarshaller, entryData);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | XMLStreamException | JAXBException e) {
+            throw new RuntimeException("Caught exception when processing file '" + entry + "'", e);
+        }
+    }
+
+    private void loadFilteredCompositeFrame(XMLStreamReader reader, Unmarshaller unmarshaller, NetexEntryData entryData) throws XMLStreamException, JAXBException {
+        String fileTimeZone = "GMT";
+
+        int depth = 1;
+        int event = reader.next();
+        while (depth > 0) {
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                Class<? extends Common_VersionFrameStructure> frameType = filteredFrameTypes.get(name);
+                if (frameType != null) {
+                    loadCommonFrame(unmarshaller.unmarshal(reader, frameType), entryData);
+                    // The unmarshaller leaves the reader on the event following the end of the frame
+                    event = reader.getEventType();
+                    continue;
+                }
+                if ("FrameDefaults".equals(name)) {
+                    String timeZone = NetexStaxReader.readFrameDefaultsTimeZone(reader);
+                    if (timeZone != null) {
+                        fileTimeZone = timeZone;
+                    }
+                } else if ("frames".equals(name)) {
+                    depth++;
+                } else {
+                    NetexStaxReader.skipElement(reader);
+                }
+            }
+            if (depth > 0) {
+                event = reader.next();
+            }
+        }
+
+        entryData.setTimeZone(fileTimeZone);
+    }
+
     // ServiceJourneys
-    private void loadTimeTableFrames(JAXBElement commonFrame) {
+    private void loadTimeTableFrames(JAXBElement commonFrame, NetexEntryData entryData) {
         if (commonFrame.getValue() instanceof TimetableFrame) {
             TimetableFrame timetableFrame = (TimetableFrame) commonFrame.getValue();
 
@@ -199,48 +520,41 @@ class NetexProcessor {
                     ServiceJourney sj = (ServiceJourney) jStructure;
                     String journeyPatternId = sj.getJourneyPatternRef().getValue().getRef();
 
-                    JourneyPattern journeyPattern = journeyPatternsById.get(journeyPatternId);
-
-                    if (journeyPattern != null) {
-                        if (journeyPattern.getPointsInSequence().
-                                getPointInJourneyPatternOrStopPointInJourneyPatternOrTimingPointInJourneyPattern()
-                                .size() == sj.getPassingTimes().getTimetabledPassingTime().size()) {
-                            serviceJourneys.add(sj);
-                        }
+                    if (entryData.hasMatchingJourneyPattern(journeyPatternId, sj.getPassingTimes().getTimetabledPassingTime().size())) {
+                        entryData.addServiceJourney(toServiceJourneyRecord(sj, entryData));
                     }
                 }
                 if (jStructure instanceof DatedServiceJourney) {
                     DatedServiceJourney dsj = (DatedServiceJourney) jStructure;
-                    final String id = dsj.getId();
-                    final ServiceAlterationEnumeration serviceAlteration = dsj.getServiceAlteration();
-
-
-                    if (dsj.getJourneyRef() != null) {
-
-                        final OperatingDay operatingDay = operatingDayByOperatingDayId.get(dsj.getOperatingDayRef().getRef());
-
-                        final LocalDateTime date = operatingDay.getCalendarDate();//.format(dateFormatter);
-
-                        final List<JAXBElement<? extends JourneyRefStructure>> serviceJourneyRefs = dsj.getJourneyRef();
-                        for (JAXBElement<? extends JourneyRefStructure> serviceJourneyRef : serviceJourneyRefs) {
-                            final JourneyRefStructure serviceJourneyRefValue = serviceJourneyRef.getValue();
-
-                            final String serviceJourneyId = serviceJourneyRefValue.getRef();
+                    List<String> serviceJourneyRefs = new ArrayList<>();
+                    for (JAXBElement<? extends JourneyRefStructure> serviceJourneyRef : dsj.getJourneyRef()) {
+                        serviceJourneyRefs.add(entryData.intern(serviceJourneyRef.getValue().getRef()));
+                    }
+                    entryData.addDatedServiceJourney(dsj.getId(), entryData.intern(dsj.getOperatingDayRef().getRef()), serviceJourneyRefs);
+                }
+            }
+        }
+    }
 
-                            serviceJourneyDateToDatedServiceJourney.put(getKey(date, serviceJourneyId), id);
+    private static ServiceJourneyRecord toServiceJourneyRecord(ServiceJourney sj, NetexEntryData entryData) {
+        String journeyPatternId = entryData.intern(sj.getJourneyPatternRef().getValue().getRef());
+        String privateCode = sj.getPrivateCode() != null ? sj.getPrivateCode().getValue() : null;
 
-                            final Set<DatedServiceJourney> datedServiceJourneys = datedServiceJourneysByServiceJourney.getOrDefault(serviceJourneyId, new HashSet<>());
-                            datedServiceJourneys.add(dsj);
-                            datedServiceJourneysByServiceJourney.put(serviceJourneyId, datedServiceJourneys);
-                        }
-                    }
+        List<TimetabledPassingTime> passingTimes = sj.getPassingTimes().getTimetabledPassingTime();
+        LocalTime departureTime = !passingTimes.isEmpty() ? passingTimes.get(0).getDepartureTime() : null;
 
-                }
+        List<String> dayTypeRefs = null;
+        if (sj.getDayTypes() != null) {
+            dayTypeRefs = new ArrayList<>();
+            for (JAXBElement<? extends DayTypeRefStructure> dayTypeRef : sj.getDayTypes().getDayTypeRef()) {
+                dayTypeRefs.add(entryData.intern(dayTypeRef.getValue().getRef()));
             }
         }
+
+        return new ServiceJourneyRecord(sj.getId(), sj.getVersion(), privateCode, journeyPatternId, departureTime, dayTypeRefs);
     }
 
-    private String getKey(LocalDateTime date, String serviceJourneyId) {
+    static String getKey(LocalDateTime date, String serviceJourneyId) {
         return date.format(dateFormatter) + ":" + serviceJourneyId;
     }
 
@@ -250,14 +564,14 @@ class NetexProcessor {
     }
 
     // ServiceCalendar
-    private void loadServiceCalendarFrames(JAXBElement commonFrame) {
+    private void loadServiceCalendarFrames(JAXBElement commonFrame, NetexEntryData entryData) {
         if (commonFrame.getValue() instanceof ServiceCalendarFrame) {
             ServiceCalendarFrame scf = (ServiceCalendarFrame) commonFrame.getValue();
 
             if (scf.getServiceCalendar() != null) {
                 DayTypes_RelStructure dayTypes = scf.getServiceCalendar().getDayTypes();
                 for (JAXBElement dt : dayTypes.getDayTypeRefOrDayType_()) {
-                    loadDayType(dt);
+                    loadDayType(dt, entryData);
                 }
             }
 
@@ -265,7 +579,7 @@ class NetexProcessor {
                 List<JAXBElement<? extends DataManagedObjectStructure>> dayTypes = scf.getDayTypes()
                         .getDayType_();
                 for (JAXBElement dt : dayTypes) {
-                    loadDayType(dt);
+                    loadDayType(dt, entryData);
                 }
             }
 
@@ -273,9 +587,17 @@ class NetexProcessor {
                 List<DayTypeAssignment> dayTypeAssignments = scf.getDayTypeAssignments().getDayTypeAssignment();
 
                 for (DayTypeAssignment dayTypeAssignment : dayTypeAssignments) {
-                    String ref = dayTypeAssignment.getDayTypeRef().getValue().getRef();
+                    LocalDate date = dayTypeAssignment.getDate() != null ? dayTypeAssignment.getDate().toLocalDate() : null;
+                    boolean available = dayTypeAssignment.isIsAvailable() == null || dayTypeAssignment.isIsAvailable();
+                    entryData.addDayTypeAssignment(new DayTypeAssignmentRecord(entryData.intern(refOf(dayTypeAssignment.getDayTypeRef())), date,
+                            entryData.intern(refOf(dayTypeAssignment.getOperatingDayRef())),
+                            entryData.intern(refOf(dayTypeAssignment.getOperatingPeriodRef())), available));
+                }
+            }
 
-                    dayTypeAssignmentByDayTypeId.put(ref, dayTypeAssignment);
+            if (scf.getOperatingPeriods() != null) {
+                for (Object operatingPeriod : scf.getOperatingPeriods().getOperatingPeriodOrUicOperatingPeriod()) {
+                    loadOperatingPeriod(operatingPeriod, entryData);
                 }
             }
 
@@ -283,24 +605,67 @@ class NetexProcessor {
                 final List<OperatingDay> operatingDays = scf.getOperatingDays().getOperatingDay();
 
                 for (OperatingDay operatingDay : operatingDays) {
-                    String id = operatingDay.getId();
-                    if (operatingDay.getServiceCalendarRef() != null) {
-                        id = operatingDay.getServiceCalendarRef().getRef();
-                    }
-                    operatingDayByOperatingDayId.put(id, operatingDay);
+                    String serviceCalendarRef = operatingDay.getServiceCalendarRef() != null ? operatingDay.getServiceCalendarRef().getRef() : null;
+                    entryData.addOperatingDay(operatingDay.getId(), serviceCalendarRef, operatingDay.getCalendarDate());
                 }
             }
         }
     }
 
-    private void loadDayType(JAXBElement dt) {
+    private void loadDayType(JAXBElement dt, NetexEntryData entryData) {
         if (dt.getValue() instanceof DayType) {
             DayType dayType = (DayType) dt.getValue();
-            dayTypeById.put(dayType.getId(), dayType);
+
+            Set<DayOfWeek> daysOfWeek = null;
+            if (dayType.getProperties() != null) {
+                for (PropertyOfDay propertyOfDay : dayType.getProperties().getPropertyOfDay()) {
+                    for (Object dayOfWeek : propertyOfDay.getDaysOfWeek()) {
+                        if (daysOfWeek == null) {
+                            daysOfWeek = EnumSet.noneOf(DayOfWeek.class);
+                        }
+                        daysOfWeek.addAll(DayTypeCalendar.parseDaysOfWeek(String.valueOf(dayOfWeek)));
+                    }
+                }
+            }
+            entryData.addDayType(new DayTypeRecord(dayType.getId(), daysOfWeek));
+        }
+    }
+
+    private void loadOperatingPeriod(Object operatingPeriod, NetexEntryData entryData) {
+        if (operatingPeriod instanceof JAXBElement) {
+            operatingPeriod = ((JAXBElement<?>) operatingPeriod).getValue();
+        }
+        if (operatingPeriod instanceof OperatingPeriod_VersionStructure) {
+            OperatingPeriod_VersionStructure period = (OperatingPeriod_VersionStructure) operatingPeriod;
+            String validDayBits = period instanceof UicOperatingPeriod ? ((UicOperatingPeriod) period).getValidDayBits() : null;
+            entryData.addOperatingPeriod(new OperatingPeriodRecord(period.getId(),
+                    period.getFromDate() != null ? period.getFromDate().toLocalDate() : null,
+                    period.getToDate() != null ? period.getToDate().toLocalDate() : null,
+                    refOf(period.getFromOperatingDayRef()), refOf(period.getToOperatingDayRef()), validDayBits));
         }
     }
 
-    private void loadServiceFrames(JAXBElement commonFrame) {
+    /*
+     * References are either plain reference structures, or JAXBElements for references with substitution groups
+     */
+    private static String refOf(Object reference) {
+        if (reference instanceof JAXBElement) {
+            reference = ((JAXBElement<?>) reference).getValue();
+        }
+        if (reference instanceof VersionOfObjectRefStructure) {
+            return ((VersionOfObjectRefStructure) reference).getRef();
+        }
+        return null;
+    }
+
+    /**
+     * @return the dates the DayType is valid on, or null if the DayType is unknown
+     */
+    DayTypeCalendar.DayTypeDates getDayTypeDates(String dayTypeRef) {
+        return dayTypeCalendar.getDates(dayTypeRef);
+    }
+
+    private void loadServiceFrames(JAXBElement commonFrame, NetexEntryData entryData) {
         if (commonFrame.getValue() instanceof ServiceFrame) {
             ServiceFrame sf = (ServiceFrame) commonFrame.getValue();
 
@@ -312,7 +677,10 @@ class NetexProcessor {
                 for (JAXBElement pattern : journeyPatternOrJourneyPatternView) {
                     if (pattern.getValue() instanceof JourneyPattern) {
                         JourneyPattern journeyPattern = (JourneyPattern) pattern.getValue();
-                        journeyPatternsById.put(journeyPattern.getId(), journeyPattern);
+                        String routeRef = journeyPattern.getRouteRef() != null ? journeyPattern.getRouteRef().getRef() : null;
+                        int stopCount = journeyPattern.getPointsInSequence() != null ? journeyPattern.getPointsInSequence()
+                                .getPointInJourneyPatternOrStopPointInJourneyPatternOrTimingPointInJourneyPattern().size() : 0;
+                        entryData.addJourneyPattern(new JourneyPatternRecord(journeyPattern.getId(), entryData.intern(routeRef), stopCount));
                     }
                 }
 
@@ -320,7 +688,7 @@ class NetexProcessor {
         }
     }
 
-    private void loadRoutes(JAXBElement commonFrame) {
+    private void loadRoutes(JAXBElement commonFrame, NetexEntryData entryData) {
         if (commonFrame.getValue() instanceof ServiceFrame) {
             ServiceFrame sf = (ServiceFrame) commonFrame.getValue();
 
@@ -331,7 +699,8 @@ class NetexProcessor {
                 for (JAXBElement element : routesList) {
                     if (element.getValue() instanceof Route) {
                         Route route = (Route) element.getValue();
-                        routesById.put(route.getId(), route);
+                        String lineRef = route.getLineRef() != null ? route.getLineRef().getValue().getRef() : null;
+                        entryData.addRoute(new RouteRecord(route.getId(), entryData.intern(lineRef)));
                     }
                 }
 
@@ -346,4 +715,9 @@ class NetexProcessor {
     public String getTimeZone() {
         return timeZone;
     }
+
+    @Override
+    public void close() throws IOException {
+        zipSource.close();
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * How a {@link NetexProcessor} reads its zip - all options are optional, and default to parsing everything with JAXB
+ * on the calling thread.
+ */
+class NetexProcessorOptions {
+
+    NetexParserMode parserMode = NetexParserMode.JAXB;
+
+    /*
+     * Used to parse the line-files concurrently. If null, all files are parsed on the calling thread.
+     */
+    ExecutorService parseExecutor;
+
+    /*
+     * Reused for unchanged shared data-files. If null, shared data is always parsed.
+     */
+    SharedDataCache sharedDataCache;
+
+    /*
+     * Line-files that are registered as unchanged are skipped. If null, all files are parsed.
+     */
+    ImportedEntryRegistry importedEntryRegistry;
+
+    /*
+     * Line-files up to and including this entry have already been imported, and are skipped. If null, or not found
+     * in the zip, no files are skipped.
+     */
+    String resumeAfterEntry;
+
+    /*
+     * Departures outside the import window are not imported, so line-files are only registered as unchanged for the
+     * same window. If null, the registry is used as is.
+     */
+    String importWindow;
+
+    NetexProcessorOptions parserMode(NetexParserMode parserMode) {
+        this.parserMode = parserMode;
+        return this;
+    }
+
+    NetexProcessorOptions parseExecutor(ExecutorService parseExecutor) {
+        this.parseExecutor = parseExecutor;
+        return this;
+    }
+
+    NetexProcessorOptions sharedDataCache(SharedDataCache sharedDataCache) {
+        this.sharedDataCache = sharedDataCache;
+        return this;
+    }
+
+    NetexProcessorOptions importedEntryRegistry(ImportedEntryRegistry importedEntryRegistry) {
+        this.importedEntryRegistry = importedEntryRegistry;
+        return this;
+    }
+
+    NetexProcessorOptions resumeAfterEntry(String resumeAfterEntry) {
+        this.resumeAfterEntry = resumeAfterEntry;
+        return this;
+    }
+
+    NetexProcessorOptions importWindow(String importWindow) {
+        this.importWindow = importWindow;
+        return this;
+    }
+}
@@ -0,0 +1,567 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Streams a single NeTEx xml-file, and only extracts the elements and fields that are used when creating
+ * DatedServiceJourneys. Everything else (stop points, passing times, notices, other frames) is skipped
+ * without being materialized.
+ *
+ * The extracted data is added to the {@link NetexEntryData} with the same semantics as the JAXB-based parsing.
+ */
+class NetexStaxReader {
+
+    private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+
+    private final NetexEntryData entryData;
+
+    NetexStaxReader(NetexEntryData entryData) {
+        this.entryData = entryData;
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    static XMLStreamReader createXMLStreamReader(InputStream inputStream) throws XMLStreamException {
+        return xmlInputFactory.createXMLStreamReader(inputStream);
+    }
+
+    void read(InputStream inputStream) throws XMLStreamException {
+        XMLStreamReader reader = createXMLStreamReader(inputStream);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("PublicationTimestamp".equals(name)) {
+                        entryData.publicationTimestamp = parseDateTime(reader.getElementText());
+                    } else if ("CompositeFrame".equals(name)) {
+                        readCompositeFrame(reader);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readCompositeFrame(XMLStreamReader reader) throws XMLStreamException {
+        String fileTimeZone = "GMT";
+
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "FrameDefaults":
+                        String timeZone = readFrameDefaultsTimeZone(reader);
+                        if (timeZone != null) {
+                            fileTimeZone = timeZone;
+                        }
+                        break;
+                    case "ServiceFrame":
+                        readServiceFrame(reader);
+                        break;
+                    case "ServiceCalendarFrame":
+                        readServiceCalendarFrame(reader);
+                        break;
+                    case "TimetableFrame":
+                        readTimetableFrame(reader);
+                        break;
+                    case "frames":
+                        depth++;
+                        break;
+                    default:
+                        skipElement(reader);
+                }
+            }
+        }
+
+        entryData.setTimeZone(fileTimeZone);
+    }
+
+    static String readFrameDefaultsTimeZone(XMLStreamReader reader) throws XMLStreamException {
+        String timeZone = null;
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                if ("TimeZone".equals(reader.getLocalName())) {
+                    timeZone = reader.getElementText();
+                } else {
+                    depth++;
+                }
+            }
+        }
+        return timeZone;
+    }
+
+    // JourneyPatterns and Routes
+    private void readServiceFrame(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "routes":
+                    case "journeyPatterns":
+                        depth++;
+                        break;
+                    case "Route":
+                        readRoute(reader);
+                        break;
+                    case "JourneyPattern":
+                        readJourneyPattern(reader);
+                        break;
+                    default:
+                        skipElement(reader);
+                }
+            }
+        }
+    }
+
+    private void readRoute(XMLStreamReader reader) throws XMLStreamException {
+        String id = reader.getAttributeValue(null, "id");
+        String lineRef = null;
+
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if ("LineRef".equals(name) || "FlexibleLineRef".equals(name)) {
+                    lineRef = readRef(reader);
+                } else {
+                    skipElement(reader);
+                }
+            }
+        }
+
+        entryData.addRoute(new RouteRecord(id, lineRef));
+    }
+
+    private void readJourneyPattern(XMLStreamReader reader) throws XMLStreamException {
+        String id = reader.getAttributeValue(null, "id");
+        String routeRef = null;
+        int stopCount = 0;
+
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if ("RouteRef".equals(name)) {
+                    routeRef = readRef(reader);
+                } else if ("pointsInSequence".equals(name)) {
+                    // Only the number of points is needed - the points themselves are not kept
+                    stopCount = countChildElements(reader);
+                } else {
+                    skipElement(reader);
+                }
+            }
+        }
+
+        entryData.addJourneyPattern(new JourneyPatternRecord(id, routeRef, stopCount));
+    }
+
+    // DayTypes, DayTypeAssignments and OperatingDays
+    private void readServiceCalendarFrame(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "ServiceCalendar":
+                        readServiceCalendar(reader);
+                        break;
+                    case "dayTypes":
+                    case "dayTypeAssignments":
+                    case "operatingDays":
+                    case "operatingPeriods":
+                        depth++;
+                        break;
+                    case "DayType":
+                        readDayType(reader);
+                        break;
+                    case "DayTypeAssignment":
+                        readDayTypeAssignment(reader);
+                        break;
+                    case "OperatingDay":
+                        readOperatingDay(reader);
+                        break;
+                    case "OperatingPeriod":
+                    case "UicOperatingPeriod":
+                        readOperatingPeriod(reader);
+                        break;
+                    default:
+                        skipElement(reader);
+                }
+            }
+        }
+    }
+
+    /*
+     * Only DayTypes are used from the ServiceCalendar
+     */
+    private void readServiceCalendar(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (depth == 1 && "dayTypes".equals(name)) {
+                    depth++;
+                } else if (depth == 2 && "DayType".equals(name)) {
+                    readDayType(reader);
+                } else {
+                    skipElement(reader);
+                }
+            }
+        }
+    }
+
+    private void readDayType(XMLStreamReader reader) throws XMLStreamException {
+        String id = reader.getAttributeValue(null, "id");
+        Set<DayOfWeek> daysOfWeek = null;
+
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if ("properties".equals(name) || "PropertyOfDay".equals(name)) {
+                    depth++;
+                } else if ("DaysOfWeek".equals(name)) {
+                    if (daysOfWeek == null) {
+                        daysOfWeek = EnumSet.noneOf(DayOfWeek.class);
+                    }
+                    daysOfWeek.addAll(DayTypeCalendar.parseDaysOfWeek(reader.getElementText()));
+                } else {
+                    skipElement(reader);
+                }
+            }
+        }
+
+        entryData.addDayType(new DayTypeRecord(id, daysOfWeek));
+    }
+
+    private void readDayTypeAssignment(XMLStreamReader reader) throws XMLStreamException {
+        String dayTypeRef = null;
+        LocalDateTime date = null;
+        String operatingDayRef = null;
+        String operatingPeriodRef = null;
+        boolean available = true;
+
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if ("DayTypeRef".equals(name)) {
+                    dayTypeRef = readRef(reader);
+                } else if ("Date".equals(name)) {
+                    date = parseDateTime(reader.getElementText());
+                } else if ("OperatingDayRef".equals(name)) {
+                    operatingDayRef = readRef(reader);
+                } else if ("OperatingPeriodRef".equals(name) || "UicOperatingPeriodRef".equals(name)) {
+                    operatingPeriodRef = readRef(reader);
+                } else if ("isAvailable".equals(name)) {
+                    available = Boolean.parseBoolean(reader.getElementText().trim());
+                } else {
+                    skipElement(reader);
+                }
+            }
+        }
+
+        if (dayTypeRef != null) {
+            entryData.addDayTypeAssignment(new DayTypeAssignmentRecord(dayTypeRef, date != null ? date.toLocalDate() : null,
+                    operatingDayRef, operatingPeriodRef, available));
+        }
+    }
+
+    private void readOperatingDay(XMLStreamReader reader) throws XMLStreamException {
+        String id = reader.getAttributeValue(null, "id");
+        String serviceCalendarRef = null;
+        LocalDateTime calendarDate = null;
+
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if ("ServiceCalendarRef".equals(name)) {
+                    serviceCalendarRef = readRef(reader);
+                } else if ("CalendarDate".equals(name)) {
+                    calendarDate = parseDateTime(reader.getElementText());
+                } else {
+                    skipElement(reader);
+                }
+            }
+        }
+
+        entryData.addOperatingDay(id, serviceCalendarRef, calendarDate);
+    }
+
+    private void readOperatingPeriod(XMLStreamReader reader) throws XMLStreamException {
+        String id = reader.getAttributeValue(null, "id");
+        LocalDate fromDate = null;
+        LocalDate toDate = null;
+        String fromOperatingDayRef = null;
+        String toOperatingDayRef = null;
+        String validDayBits = null;
+
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "FromDate":
+                        fromDate = parseDateTime(reader.getElementText()).toLocalDate();
+                        break;
+                    case "ToDate":
+                        toDate = parseDateTime(reader.getElementText()).toLocalDate();
+                        break;
+                    case "FromOperatingDayRef":
+                        fromOperatingDayRef = readRef(reader);
+                        break;
+                    case "ToOperatingDayRef":
+                        toOperatingDayRef = readRef(reader);
+                        break;
+                    case "ValidDayBits":
+                        validDayBits = reader.getElementText().trim();
+                        break;
+                    default:
+                        skipElement(reader);
+                }
+            }
+        }
+
+        entryData.addOperatingPeriod(new OperatingPeriodRecord(id, fromDate, toDate, fromOperatingDayRef, toOperatingDayRef, validDayBits));
+    }
+
+    // ServiceJourneys and DatedServiceJourneys
+    private void readTimetableFrame(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "vehicleJourneys":
+                        depth++;
+                        break;
+                    case "ServiceJourney":
+                        readServiceJourney(reader);
+                        break;
+                    case "DatedServiceJourney":
+                        readDatedServiceJourney(reader);
+                        break;
+                    default:
+                        skipElement(reader);
+                }
+            }
+        }
+    }
+
+    private void readServiceJourney(XMLStreamReader reader) throws XMLStreamException {
+        String id = reader.getAttributeValue(null, "id");
+        String version = reader.getAttributeValue(null, "version");
+
+        String privateCode = null;
+        String journeyPatternRef = null;
+        List<String> dayTypeRefs = null;
+        int passingTimeCount = 0;
+        LocalTime firstDepartureTime = null;
+
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (depth == 1 && "PrivateCode".equals(name)) {
+                    privateCode = reader.getElementText();
+                } else if (depth == 1 && ("JourneyPatternRef".equals(name) || "ServiceJourneyPatternRef".equals(name))) {
+                    journeyPatternRef = readRef(reader);
+                } else if (depth == 2 && "DayTypeRef".equals(name)) {
+                    dayTypeRefs.add(readRef(reader));
+                } else if (depth == 2 && "TimetabledPassingTime".equals(name)) {
+                    passingTimeCount++;
+                    if (passingTimeCount == 1) {
+                        firstDepartureTime = readDepartureTime(reader);
+                    } else {
+                        skipElement(reader);
+                    }
+                } else if (depth == 1 && "dayTypes".equals(name)) {
+                    dayTypeRefs = new ArrayList<>();
+                    depth++;
+                } else if (depth == 1 && "passingTimes".equals(name)) {
+                    depth++;
+                } else {
+                    skipElement(reader);
+                }
+            }
+        }
+
+        if (journeyPatternRef == null || !entryData.hasMatchingJourneyPattern(journeyPatternRef, passingTimeCount)) {
+            return;
+        }
+
+        entryData.addServiceJourney(new ServiceJourneyRecord(id, version, privateCode, journeyPatternRef, firstDepartureTime, dayTypeRefs));
+    }
+
+    private LocalTime readDepartureTime(XMLStreamReader reader) throws XMLStreamException {
+        LocalTime departureTime = null;
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                if ("DepartureTime".equals(reader.getLocalName())) {
+                    departureTime = LocalTime.parse(reader.getElementText().trim());
+                } else {
+                    skipElement(reader);
+                }
+            }
+        }
+        return departureTime;
+    }
+
+    private void readDatedServiceJourney(XMLStreamReader reader) throws XMLStreamException {
+        String id = reader.getAttributeValue(null, "id");
+        String operatingDayRef = null;
+        List<String> serviceJourneyRefs = new ArrayList<>();
+
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if ("OperatingDayRef".equals(name)) {
+                    operatingDayRef = readRef(reader);
+                } else if ("ServiceJourneyRef".equals(name)) {
+                    serviceJourneyRefs.add(readRef(reader));
+                } else {
+                    skipElement(reader);
+                }
+            }
+        }
+
+        entryData.addDatedServiceJourney(id, operatingDayRef, serviceJourneyRefs);
+    }
+
+    /*
+     * Reads the ref-attribute, and skips to the end of the reference-element. The same refs are repeated
+     * throughout the files, so they are interned.
+     */
+    private String readRef(XMLStreamReader reader) throws XMLStreamException {
+        String ref = reader.getAttributeValue(null, "ref");
+        skipElement(reader);
+        return entryData.intern(ref);
+    }
+
+    /*
+     * Counts, and skips, all child-elements of the current element
+     */
+    private static int countChildElements(XMLStreamReader reader) throws XMLStreamException {
+        int count = 0;
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (depth == 1) {
+                    count++;
+                }
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Skips to the end of the current element, including all children
+     */
+    static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /*
+     * Handles both xsd:date and xsd:dateTime, with or without offset - as done by the NeTEx JAXB-adapters
+     */
+    static LocalDateTime parseDateTime(String value) {
+        String text = value.trim();
+        if (text.indexOf('T') < 0) {
+            return LocalDate.parse(text, DateTimeFormatter.ISO_DATE).atStartOfDay();
+        }
+        return LocalDateTime.parse(text, DateTimeFormatter.ISO_DATE_TIME);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import java.time.LocalDate;
+
+/**
+ * A NeTEx OperatingPeriod or UicOperatingPeriod. The period is given either by dates or by OperatingDays.
+ */
+final class OperatingPeriodRecord {
+
+    private final String id;
+    private final LocalDate fromDate;
+    private final LocalDate toDate;
+    private final String fromOperatingDayRef;
+    private final String toOperatingDayRef;
+    private final String validDayBits;
+
+    /**
+     * @param validDayBits one '0' or '1' per day from the start of the period - only set for UicOperatingPeriods
+     */
+    OperatingPeriodRecord(String id, LocalDate fromDate, LocalDate toDate, String fromOperatingDayRef,
+                          String toOperatingDayRef, String validDayBits) {
+        this.id = id;
+        this.fromDate = fromDate;
+        this.toDate = toDate;
+        this.fromOperatingDayRef = fromOperatingDayRef;
+        this.toOperatingDayRef = toOperatingDayRef;
+        this.validDayBits = validDayBits;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    LocalDate getFromDate() {
+        return fromDate;
+    }
+
+    LocalDate getToDate() {
+        return toDate;
+    }
+
+    String getFromOperatingDayRef() {
+        return fromOperatingDayRef;
+    }
+
+    String getToOperatingDayRef() {
+        return toOperatingDayRef;
+    }
+
+    String getValidDayBits() {
+        return validDayBits;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+/**
+ * The parts of a NeTEx Route that are needed to create DatedServiceJourneys.
+ */
+final class RouteRecord {
+
+    private final String id;
+    private final String lineRef;
+
+    RouteRecord(String id, String lineRef) {
+        this.id = id;
+        this.lineRef = lineRef;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getLineRef() {
+        return lineRef;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import java.time.LocalTime;
+import java.util.List;
+
+/**
+ * The parts of a NeTEx ServiceJourney that are needed to create DatedServiceJourneys.
+ */
+final class ServiceJourneyRecord {
+
+    private final String id;
+    private final String version;
+    private final String privateCode;
+    private final String journeyPatternRef;
+    private final LocalTime departureTime;
+    private final List<String> dayTypeRefs;
+
+    /**
+     * @param departureTime departure time from the first passing time
+     * @param dayTypeRefs null if the ServiceJourney has no dayTypes, and is only referenced from DatedServiceJourneys
+     */
+    ServiceJourneyRecord(String id, String version, String privateCode, String journeyPatternRef,
+                         LocalTime departureTime, List<String> dayTypeRefs) {
+        this.id = id;
+        this.version = version;
+        this.privateCode = privateCode;
+        this.journeyPatternRef = journeyPatternRef;
+        this.departureTime = departureTime;
+        this.dayTypeRefs = dayTypeRefs != null ? List.copyOf(dayTypeRefs) : null;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getVersion() {
+        return version;
+    }
+
+    String getPrivateCode() {
+        return privateCode;
+    }
+
+    String getJourneyPatternRef() {
+        return journeyPatternRef;
+    }
+
+    LocalTime getDepartureTime() {
+        return departureTime;
+    }
+
+    List<String> getDayTypeRefs() {
+        return dayTypeRefs;
+    }
+}
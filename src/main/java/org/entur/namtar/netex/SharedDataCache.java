@@ -0,0 +1,53 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Parsed "_[...]_shared_data.xml"-entries, reused across NeTEx-zips as long as the content is unchanged.
+ *
+ * Entries are identified by codespace, entry name and {@link ZipSource#getFingerprint}, so a cached entry can be
+ * reused without reading the entry at all.
+ */
+class SharedDataCache {
+
+    private final Cache<String, NetexEntryData> cache;
+
+    SharedDataCache(long maximumSize) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    NetexEntryData get(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    void put(String key, NetexEntryData entryData) {
+        cache.put(key, entryData);
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    String getStats() {
+        return cache.stats().toString();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * {@link ZipSource} backed by {@link ZipFile}
+ */
+class ZipFileSource implements ZipSource {
+
+    private final ZipFile zipFile;
+
+    /*
+     * Read once from the central directory, as the entries are listed several times per import
+     */
+    private final List<ZipEntry> entries;
+
+    ZipFileSource(File file) throws IOException {
+        zipFile = new ZipFile(file, ZipFile.OPEN_READ);
+        entries = Collections.unmodifiableList(zipFile.stream().collect(Collectors.toList()));
+    }
+
+    @Override
+    public String getName() {
+        return zipFile.getName();
+    }
+
+    @Override
+    public List<ZipEntry> getEntries() {
+        return entries;
+    }
+
+    @Override
+    public InputStream getInputStream(ZipEntry entry) throws IOException {
+        return zipFile.getInputStream(entry);
+    }
+
+    @Override
+    public void close() throws IOException {
+        zipFile.close();
+    }
+}
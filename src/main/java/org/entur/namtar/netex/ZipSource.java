@@ -0,0 +1,59 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+/**
+ * Read-access to the entries of a NeTEx-zip.
+ *
+ * Implementations must allow entries to be read concurrently.
+ */
+interface ZipSource extends Closeable {
+
+    static ZipSource open(File file) throws IOException {
+        return new ZipFileSource(file);
+    }
+
+    /**
+     * Identifies the content of the entry by the CRC and size from the central directory
+     *
+     * @return the fingerprint, or null if CRC or size is unknown
+     */
+    static String getFingerprint(ZipEntry entry) {
+        if (entry.getCrc() == -1 || entry.getSize() == -1) {
+            return null;
+        }
+        return Long.toHexString(entry.getCrc()) + ":" + entry.getSize();
+    }
+
+    String getName();
+
+    /**
+     * All entries, in the order of the central directory
+     */
+    List<ZipEntry> getEntries();
+
+    /**
+     * Streams the uncompressed content of the entry. Nothing is read until the returned stream is consumed.
+     */
+    InputStream getInputStream(ZipEntry entry) throws IOException;
+}
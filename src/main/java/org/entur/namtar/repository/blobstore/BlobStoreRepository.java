@@ -15,7 +15,7 @@
 
 package org.entur.namtar.repository.blobstore;
 
-import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
 
 import java.io.InputStream;
@@ -23,10 +23,22 @@ import java.util.Iterator;
 
 public interface BlobStoreRepository {
 
-    Iterator<Blob> listBlobs(String prefix);
+    Iterator<BlobInfo> listBlobs(String prefix);
 
     InputStream getBlob(String objectName);
 
+    /**
+     * Reads part of a blob, so that large blobs can be downloaded as several concurrent ranges
+     *
+     * @return length bytes starting at offset - fewer if the blob ends first, or null if not found
+     */
+    InputStream getBlobRange(String objectName, long offset, long length);
+
+    /**
+     * @return name, size and checksum of the blob, or null if not found
+     */
+    BlobInfo getBlobInfo(String objectName);
+
     void setStorage(Storage storage);
 
     void setContainerName(String containerName);
@@ -15,28 +15,36 @@
 
 package org.entur.namtar.repository.blobstore;
 
-import com.google.cloud.storage.Blob;
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
+import com.google.common.collect.Iterators;
+import com.google.common.io.ByteStreams;
 import org.rutebanken.helper.gcp.BlobStoreHelper;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Repository;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
 import java.util.Iterator;
 
 @Repository
 @Profile("gcs-blobstore")
 public class GcsBlobStoreRepository implements BlobStoreRepository {
 
+    private static final int MAX_RANGE_CHUNK_SIZE = 16 * 1024 * 1024;
+
     private Storage storage;
 
     @Value("${blobstore.gcs.container.name}")
     private String containerName;
 
     @Override
-    public Iterator<Blob> listBlobs(String prefix) {
-        return BlobStoreHelper.listAllBlobsRecursively(storage, containerName, prefix);
+    public Iterator<BlobInfo> listBlobs(String prefix) {
+        return Iterators.transform(BlobStoreHelper.listAllBlobsRecursively(storage, containerName, prefix), blob -> blob);
     }
 
     @Override
@@ -44,6 +52,25 @@ public class GcsBlobStoreRepository implements BlobStoreRepository {
         return BlobStoreHelper.getBlob(storage, containerName, objectName);
     }
 
+    @Override
+    public InputStream getBlobRange(String objectName, long offset, long length) {
+        ReadChannel reader = storage.reader(containerName, objectName);
+        try {
+            reader.seek(offset);
+        } catch (IOException e) {
+            reader.close();
+            throw new UncheckedIOException(e);
+        }
+        // Avoids reading far beyond the range
+        reader.setChunkSize((int) Math.min(length, MAX_RANGE_CHUNK_SIZE));
+        return ByteStreams.limit(Channels.newInputStream(reader), length);
+    }
+
+    @Override
+    public BlobInfo getBlobInfo(String objectName) {
+        return storage.get(containerName, objectName);
+    }
+
     @Override
     public void setStorage(Storage storage) {
         this.storage = storage;
@@ -15,26 +15,68 @@
 
 package org.entur.namtar.repository.blobstore;
 
-import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Repository;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Base64;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
 
 @Repository
 @Profile("in-memory-blobstore")
 public class InMemoryBlobStoreRepository implements BlobStoreRepository {
 
+    private final Map<String, byte[]> contents = new ConcurrentHashMap<>();
+
+    private final Map<String, BlobInfo> blobInfos = new ConcurrentHashMap<>();
+
+    /**
+     * Stores the blob with size and CRC32C, as reported by GCS
+     */
+    public void putBlob(String objectName, byte[] content) {
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(content);
+        contents.put(objectName, content);
+        blobInfos.put(objectName, BlobInfo.newBuilder("in-memory", objectName)
+                .setSize((long) content.length)
+                .setCrc32c(Base64.getEncoder().encodeToString(ByteBuffer.allocate(4).putInt((int) crc32c.getValue()).array()))
+                .setUpdateTime(System.currentTimeMillis())
+                .build());
+    }
+
     @Override
-    public Iterator<Blob> listBlobs(String prefix) {
-        return null;
+    public Iterator<BlobInfo> listBlobs(String prefix) {
+        return blobInfos.values().stream()
+                .filter(blobInfo -> blobInfo.getName().startsWith(prefix))
+                .iterator();
     }
 
     @Override
     public InputStream getBlob(String objectName) {
-        return null;
+        byte[] content = contents.get(objectName);
+        return content != null ? new ByteArrayInputStream(content) : null;
+    }
+
+    @Override
+    public InputStream getBlobRange(String objectName, long offset, long length) {
+        byte[] content = contents.get(objectName);
+        if (content == null) {
+            return null;
+        }
+        int start = (int) Math.min(offset, content.length);
+        return new ByteArrayInputStream(content, start, (int) Math.min(length, content.length - start));
+    }
+
+    @Override
+    public BlobInfo getBlobInfo(String objectName) {
+        return blobInfos.get(objectName);
     }
 
     @Override
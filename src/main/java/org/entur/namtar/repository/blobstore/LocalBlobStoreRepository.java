@@ -0,0 +1,156 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.repository.blobstore;
+
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.common.io.ByteStreams;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Serves files from a local directory, for running imports without GCS. Blob names are paths relative to the
+ * directory.
+ *
+ * Files should be moved into the directory when complete - files named ".*" or "*.part" are ignored until then.
+ */
+@Repository
+@Profile("local-blobstore")
+public class LocalBlobStoreRepository implements BlobStoreRepository {
+
+    private final Path directory;
+
+    private String containerName = "local";
+
+    public LocalBlobStoreRepository(@Value("${blobstore.local.directory:/tmp/namtar/blobstore}") String directory) {
+        this.directory = Paths.get(directory).toAbsolutePath().normalize();
+    }
+
+    @Override
+    public Iterator<BlobInfo> listBlobs(String prefix) {
+        Path folder = resolve(prefix);
+        if (!Files.isDirectory(folder)) {
+            return Collections.emptyIterator();
+        }
+        List<BlobInfo> blobs = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.filter(Files::isRegularFile)
+                    .filter(file -> !isIncomplete(file))
+                    .forEach(file -> blobs.add(getBlobInfo(file)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return blobs.iterator();
+    }
+
+    @Override
+    public InputStream getBlob(String objectName) {
+        Path file = resolve(objectName);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            return Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public InputStream getBlobRange(String objectName, long offset, long length) {
+        Path file = resolve(objectName);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            return ByteStreams.limit(Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ).position(offset)), length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * No checksum is stored locally, so downloads are only verified by size. Names outside the directory are treated
+     * as missing, as they may come from requests to /internal/import.
+     */
+    @Override
+    public BlobInfo getBlobInfo(String objectName) {
+        Path file = directory.resolve(objectName).normalize();
+        if (!file.startsWith(directory)) {
+            return null;
+        }
+        return Files.isRegularFile(file) ? getBlobInfo(file) : null;
+    }
+
+    @Override
+    public void setStorage(Storage storage) {
+        // Ignored - is on local disk
+    }
+
+    @Override
+    public void setContainerName(String containerName) {
+        this.containerName = containerName;
+    }
+
+    /*
+     * Names are resolved within the directory only
+     */
+    public Path resolve(String name) {
+        Path path = directory.resolve(name).normalize();
+        if (!path.startsWith(directory)) {
+            throw new IllegalArgumentException("Invalid blob name: " + name);
+        }
+        return path;
+    }
+
+    public String getName(Path file) {
+        return directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    }
+
+    public static boolean isIncomplete(Path file) {
+        String filename = file.getFileName().toString();
+        return filename.startsWith(".") || filename.endsWith(".part");
+    }
+
+    private BlobInfo getBlobInfo(Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return BlobInfo.newBuilder(containerName, getName(file))
+                    .setSize(attributes.size())
+                    .setUpdateTime(attributes.lastModifiedTime().toMillis())
+                    .build();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -22,7 +22,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 
 @Configuration
-@Profile("in-memory-blobstore")
+@Profile({"in-memory-blobstore", "local-blobstore"})
 public class InMemoryGcsStorageConfig {
 
     @Bean
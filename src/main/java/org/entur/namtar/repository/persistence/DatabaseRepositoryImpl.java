@@ -17,19 +17,38 @@
 
 package org.entur.namtar.repository.persistence;
 
+import com.google.common.collect.Iterables;
 import org.entur.namtar.model.DatedServiceJourney;
 import org.entur.namtar.model.SourceFile;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.persistence.EntityManager;
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 public class DatabaseRepositoryImpl implements StorageRepository {
 
+    /*
+     * Max number of ids in each IN-list
+     */
+    private static final int BULK_QUERY_CHUNK_SIZE = 1000;
+
     private final DatedServiceJourneyRepository datedServiceJourneyRepository;
     private final SourceFileRepository sourceFileRepository;
+    private final DatedServiceJourneyBulkWriter bulkWriter;
+    private final DatedServiceJourneyKeyScanner keyScanner;
+    private final EntityManager entityManager;
 
-    public DatabaseRepositoryImpl(DatedServiceJourneyRepository repository, SourceFileRepository sourceFileRepository) {
+    public DatabaseRepositoryImpl(DatedServiceJourneyRepository repository, SourceFileRepository sourceFileRepository, DataSource dataSource,
+                                  EntityManager entityManager) {
+        this.entityManager = entityManager;
         this.datedServiceJourneyRepository = repository;
         this.sourceFileRepository = sourceFileRepository;
+        this.bulkWriter = new DatedServiceJourneyBulkWriter(dataSource);
+        this.keyScanner = new DatedServiceJourneyKeyScanner(dataSource);
     }
 
     @Override
@@ -37,6 +56,11 @@ public class DatabaseRepositoryImpl implements StorageRepository {
         datedServiceJourneyRepository.save(journey);
     }
 
+    @Override
+    public void saveAll(List<DatedServiceJourney> journeys) {
+        bulkWriter.write(journeys);
+    }
+
     @Override
     public DatedServiceJourney findByServiceJourneyIdAndDate(String serviceJourneyId, String departureDate) {
         return datedServiceJourneyRepository.findByServiceJourneyIdAndDepartureDate(serviceJourneyId, departureDate);
@@ -57,11 +81,63 @@ public class DatabaseRepositoryImpl implements StorageRepository {
         return datedServiceJourneyRepository.findFirstByPrivateCodeAndDepartureDateOrderByCreationNumberAsc(privateCode, departureDate);
     }
 
+    @Override
+    public Collection<DatedServiceJourney> findByServiceJourneyIdsAndDates(Collection<String> serviceJourneyIds, Collection<String> departureDates) {
+        List<DatedServiceJourney> result = new ArrayList<>();
+        if (departureDates.isEmpty()) {
+            return result;
+        }
+        for (List<String> chunk : Iterables.partition(serviceJourneyIds, BULK_QUERY_CHUNK_SIZE)) {
+            result.addAll(datedServiceJourneyRepository.findByServiceJourneyIdInAndDepartureDateIn(chunk, departureDates));
+            detachLoadedEntities();
+        }
+        return result;
+    }
+
+    @Override
+    public Collection<DatedServiceJourney> findByPrivateCodesAndDepartureDates(Collection<String> privateCodes, Collection<String> departureDates) {
+        List<DatedServiceJourney> result = new ArrayList<>();
+        if (departureDates.isEmpty()) {
+            return result;
+        }
+        for (List<String> chunk : Iterables.partition(privateCodes, BULK_QUERY_CHUNK_SIZE)) {
+            result.addAll(datedServiceJourneyRepository.findByPrivateCodeInAndDepartureDateIn(chunk, departureDates));
+            detachLoadedEntities();
+        }
+        return result;
+    }
+
+    @Override
+    public Collection<DatedServiceJourney> findByDatedServiceJourneyIds(Collection<String> datedServiceJourneyIds) {
+        List<DatedServiceJourney> result = new ArrayList<>();
+        for (List<String> chunk : Iterables.partition(datedServiceJourneyIds, BULK_QUERY_CHUNK_SIZE)) {
+            result.addAll(datedServiceJourneyRepository.findByDatedServiceJourneyIdIn(chunk));
+            detachLoadedEntities();
+        }
+        return result;
+    }
+
+    /*
+     * Bulk lookups are only read, so within a long-running transaction the session is kept small by flushing and
+     * clearing after each chunk
+     */
+    private void detachLoadedEntities() {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            entityManager.flush();
+            entityManager.clear();
+        }
+    }
+
     @Override
     public SourceFile findSourceFileByName(String sourceFileName) {
         return sourceFileRepository.findSourceFileBySourceFileName(sourceFileName);
     }
 
+    @Override
+    public List<String> findProcessedSourceFileNames() {
+        return sourceFileRepository.findProcessedSourceFileNames();
+    }
+
     @Override
     public void save(SourceFile sourceFile) {
         sourceFileRepository.save(sourceFile);
@@ -72,4 +148,9 @@ public class DatabaseRepositoryImpl implements StorageRepository {
 
         return datedServiceJourneyRepository.findMaxCreationNumber();
     }
+
+    @Override
+    public long scanKeys(String fromDepartureDate, long afterId, Timestamp createdFrom, DatedServiceJourneyKeyConsumer consumer) {
+        return keyScanner.scan(fromDepartureDate, afterId, createdFrom, consumer);
+    }
 }
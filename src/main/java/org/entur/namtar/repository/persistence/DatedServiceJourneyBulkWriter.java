@@ -0,0 +1,197 @@
+/*
+ *
+ *  * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ *  * the European Commission - subsequent versions of the EUPL (the "Licence");
+ *  * You may not use this work except in compliance with the Licence.
+ *  * You may obtain a copy of the Licence at:
+ *  *
+ *  *  https://joinup.ec.europa.eu/software/page/eupl
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the Licence is distributed on an "AS IS" basis,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the Licence for the specific language governing permissions and
+ *  * limitations under the Licence.
+ *
+ */
+
+package org.entur.namtar.repository.persistence;
+
+import com.google.common.collect.Lists;
+import org.entur.namtar.model.DatedServiceJourney;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * Writes new DatedServiceJourneys in bulk, bypassing the per-row persist in JPA.
+ *
+ * PostgreSQL is written to with COPY FROM STDIN in CSV-format - other databases (i.e. H2 in tests) with a plain
+ * JDBC batch. Ids are allocated from the same sequence as @GeneratedValue uses, with one query per batch.
+ */
+class DatedServiceJourneyBulkWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatedServiceJourneyBulkWriter.class);
+
+    private static final int BATCH_SIZE = 10000;
+
+    // Columns as named by Spring's default naming strategy
+    private static final String COLUMNS = "id, service_journey_id, departure_date, private_code, departure_time, line_ref, version, " +
+            "dated_service_journey_id, publication_timestamp, source_file_name, original_dated_service_journey_id, creation_number, created_date";
+
+    private static final String COPY_SQL = "COPY dated_service_journey (" + COLUMNS + ") FROM STDIN WITH (FORMAT csv)";
+
+    private static final String INSERT_SQL = "INSERT INTO dated_service_journey (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String POSTGRES_NEXT_IDS_SQL = "SELECT nextval('hibernate_sequence') FROM generate_series(1, ?)";
+
+    private static final String NEXT_IDS_SQL = "SELECT NEXT VALUE FOR hibernate_sequence FROM system_range(1, ?)";
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final DataSource dataSource;
+
+    DatedServiceJourneyBulkWriter(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    void write(List<DatedServiceJourney> journeys) {
+        if (journeys.isEmpty()) {
+            return;
+        }
+        long t1 = System.currentTimeMillis();
+
+        // Joins the current transaction, if any
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try {
+            boolean isPostgres = connection.isWrapperFor(PGConnection.class);
+            for (List<DatedServiceJourney> batch : Lists.partition(journeys, BATCH_SIZE)) {
+                allocateIds(connection, batch, isPostgres ? POSTGRES_NEXT_IDS_SQL : NEXT_IDS_SQL);
+                if (isPostgres) {
+                    copy(connection.unwrap(PGConnection.class), batch);
+                } else {
+                    insert(connection, batch);
+                }
+            }
+        } catch (SQLException e) {
+            throw new DataAccessResourceFailureException("Failed to write " + journeys.size() + " DatedServiceJourneys", e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+        logger.info("Wrote {} DatedServiceJourneys in {} ms", journeys.size(), (System.currentTimeMillis() - t1));
+    }
+
+    private void allocateIds(Connection connection, List<DatedServiceJourney> batch, String sql) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setInt(1, batch.size());
+            try (ResultSet resultSet = statement.executeQuery()) {
+                for (DatedServiceJourney journey : batch) {
+                    if (!resultSet.next()) {
+                        throw new SQLException("Sequence returned fewer ids than requested: " + batch.size());
+                    }
+                    journey.setId(resultSet.getLong(1));
+                }
+            }
+        }
+    }
+
+    private void copy(PGConnection connection, List<DatedServiceJourney> batch) throws SQLException {
+        CopyIn copyIn = connection.getCopyAPI().copyIn(COPY_SQL);
+        try {
+            StringBuilder rows = new StringBuilder(COPY_BUFFER_SIZE + 1024);
+            for (DatedServiceJourney journey : batch) {
+                rows.append(journey.getId()).append(',');
+                appendCsv(rows, journey.getServiceJourneyId()).append(',');
+                appendCsv(rows, journey.getDepartureDate()).append(',');
+                appendCsv(rows, journey.getPrivateCode()).append(',');
+                appendCsv(rows, journey.getDepartureTime()).append(',');
+                appendCsv(rows, journey.getLineRef()).append(',');
+                if (journey.getVersion() != null) {
+                    rows.append(journey.getVersion());
+                }
+                rows.append(',');
+                appendCsv(rows, journey.getDatedServiceJourneyId()).append(',');
+                appendCsv(rows, journey.getPublicationTimestamp()).append(',');
+                appendCsv(rows, journey.getSourceFileName()).append(',');
+                appendCsv(rows, journey.getOriginalDatedServiceJourneyId()).append(',');
+                rows.append(journey.getCreationNumber()).append(',');
+                if (journey.getCreatedDate() != null) {
+                    rows.append(journey.getCreatedDate());
+                }
+                rows.append('\n');
+
+                if (rows.length() >= COPY_BUFFER_SIZE) {
+                    writeToCopy(copyIn, rows);
+                }
+            }
+            writeToCopy(copyIn, rows);
+            copyIn.endCopy();
+        } finally {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        }
+    }
+
+    private static void writeToCopy(CopyIn copyIn, StringBuilder rows) throws SQLException {
+        byte[] bytes = rows.toString().getBytes(StandardCharsets.UTF_8);
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+        rows.setLength(0);
+    }
+
+    /*
+     * Values are always quoted, so that an unquoted empty value is read as null
+     */
+    private static StringBuilder appendCsv(StringBuilder rows, String value) {
+        if (value != null) {
+            rows.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"') {
+                    rows.append('"');
+                }
+                rows.append(c);
+            }
+            rows.append('"');
+        }
+        return rows;
+    }
+
+    private void insert(Connection connection, List<DatedServiceJourney> batch) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL)) {
+            for (DatedServiceJourney journey : batch) {
+                statement.setLong(1, journey.getId());
+                statement.setString(2, journey.getServiceJourneyId());
+                statement.setString(3, journey.getDepartureDate());
+                statement.setString(4, journey.getPrivateCode());
+                statement.setString(5, journey.getDepartureTime());
+                statement.setString(6, journey.getLineRef());
+                if (journey.getVersion() != null) {
+                    statement.setInt(7, journey.getVersion());
+                } else {
+                    statement.setNull(7, Types.INTEGER);
+                }
+                statement.setString(8, journey.getDatedServiceJourneyId());
+                statement.setString(9, journey.getPublicationTimestamp());
+                statement.setString(10, journey.getSourceFileName());
+                statement.setString(11, journey.getOriginalDatedServiceJourneyId());
+                statement.setLong(12, journey.getCreationNumber());
+                statement.setTimestamp(13, journey.getCreatedDate());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+}
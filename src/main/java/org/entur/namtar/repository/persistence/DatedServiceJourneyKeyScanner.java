@@ -0,0 +1,85 @@
+/*
+ *
+ *  * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ *  * the European Commission - subsequent versions of the EUPL (the "Licence");
+ *  * You may not use this work except in compliance with the Licence.
+ *  * You may obtain a copy of the Licence at:
+ *  *
+ *  *  https://joinup.ec.europa.eu/software/page/eupl
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the Licence is distributed on an "AS IS" basis,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the Licence for the specific language governing permissions and
+ *  * limitations under the Licence.
+ *
+ */
+
+package org.entur.namtar.repository.persistence;
+
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * Streams the lookup keys of stored DatedServiceJourneys with plain JDBC, without loading the entities
+ */
+class DatedServiceJourneyKeyScanner {
+
+    private static final String SCAN_SQL = "SELECT id, service_journey_id, private_code, departure_date FROM dated_service_journey " +
+            "WHERE departure_date >= ? AND (id > ? OR created_date >= ?)";
+
+    private static final int FETCH_SIZE = 10000;
+
+    private final DataSource dataSource;
+
+    DatedServiceJourneyKeyScanner(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    long scan(String fromDepartureDate, long afterId, Timestamp createdFrom, StorageRepository.DatedServiceJourneyKeyConsumer consumer) {
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try {
+            // PostgreSQL only fetches in batches within a transaction - started here unless already in one
+            boolean autoCommit = connection.getAutoCommit();
+            if (autoCommit) {
+                connection.setAutoCommit(false);
+            }
+            try (PreparedStatement statement = connection.prepareStatement(SCAN_SQL)) {
+                statement.setFetchSize(FETCH_SIZE);
+                statement.setString(1, fromDepartureDate);
+                statement.setLong(2, afterId);
+                if (createdFrom != null) {
+                    statement.setTimestamp(3, createdFrom);
+                } else {
+                    statement.setNull(3, Types.TIMESTAMP);
+                }
+
+                long maxId = afterId;
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        maxId = Math.max(maxId, resultSet.getLong(1));
+                        consumer.accept(resultSet.getString(2), resultSet.getString(3), resultSet.getString(4));
+                    }
+                }
+                return maxId;
+            } finally {
+                if (autoCommit) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            }
+        } catch (SQLException e) {
+            throw new DataAccessResourceFailureException("Failed to read DatedServiceJourney keys", e);
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+}
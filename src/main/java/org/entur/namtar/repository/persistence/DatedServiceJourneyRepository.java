@@ -22,6 +22,7 @@ import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -40,6 +41,12 @@ public interface DatedServiceJourneyRepository extends JpaRepository<DatedServic
 
     DatedServiceJourney findFirstByPrivateCodeAndDepartureDateOrderByCreationNumberAsc(String privateCode, String departureDate);
 
+    List<DatedServiceJourney> findByServiceJourneyIdInAndDepartureDateIn(Collection<String> serviceJourneyIds, Collection<String> departureDates);
+
+    List<DatedServiceJourney> findByPrivateCodeInAndDepartureDateIn(Collection<String> privateCodes, Collection<String> departureDates);
+
+    List<DatedServiceJourney> findByDatedServiceJourneyIdIn(Collection<String> datedServiceJourneyIds);
+
     @Query("select count(sourceFileName) from DatedServiceJourney where sourceFileName = ?1")
     int findDistinctFirstBySourceFileName(String sourceFileName);
 
@@ -19,7 +19,13 @@ package org.entur.namtar.repository.persistence;
 
 import org.entur.namtar.model.SourceFile;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+
+import java.util.List;
 
 public interface SourceFileRepository extends JpaRepository<SourceFile, Long> {
     SourceFile findSourceFileBySourceFileName(String sourceFileName);
+
+    @Query(value = "select s.sourceFileName from SourceFile s where s.processed = true")
+    List<String> findProcessedSourceFileNames();
 }
@@ -20,12 +20,19 @@ package org.entur.namtar.repository.persistence;
 import org.entur.namtar.model.DatedServiceJourney;
 import org.entur.namtar.model.SourceFile;
 
+import java.sql.Timestamp;
 import java.util.Collection;
+import java.util.List;
 
 public interface StorageRepository {
 
     void save(DatedServiceJourney journey);
 
+    /*
+     * Bulk insert of new DatedServiceJourneys
+     */
+    void saveAll(List<DatedServiceJourney> journeys);
+
     DatedServiceJourney findByServiceJourneyIdAndDate(String serviceJourneyId, String departureDate);
 
     DatedServiceJourney findByDatedServiceJourneyId(String datedServiceJourneyId);
@@ -34,9 +41,32 @@ public interface StorageRepository {
 
     DatedServiceJourney findByPrivateCodeDepartureDate(String privateCode, String departureDate);
 
+    /*
+     * Bulk lookups - may return more rows than requested, as every id is matched against every departureDate
+     */
+    Collection<DatedServiceJourney> findByServiceJourneyIdsAndDates(Collection<String> serviceJourneyIds, Collection<String> departureDates);
+
+    Collection<DatedServiceJourney> findByPrivateCodesAndDepartureDates(Collection<String> privateCodes, Collection<String> departureDates);
+
+    Collection<DatedServiceJourney> findByDatedServiceJourneyIds(Collection<String> datedServiceJourneyIds);
+
     SourceFile findSourceFileByName(String sourceFileName);
 
+    List<String> findProcessedSourceFileNames();
+
     void save(SourceFile sourceFile);
 
     long findMaxCreationNumber();
+
+    /*
+     * Streams the keys of all rows departing on or after fromDepartureDate, with id above afterId or created at or
+     * after createdFrom - createdFrom may be null
+     *
+     * @return the highest id seen, or afterId if no rows were found
+     */
+    long scanKeys(String fromDepartureDate, long afterId, Timestamp createdFrom, DatedServiceJourneyKeyConsumer consumer);
+
+    interface DatedServiceJourneyKeyConsumer {
+        void accept(String serviceJourneyId, String privateCode, String departureDate);
+    }
 }
@@ -16,10 +16,13 @@
 package org.entur.namtar.repository.persistence.config;
 
 
+import org.entur.namtar.metrics.PrometheusMetricsService;
+import org.entur.namtar.netex.NetexImportProperties;
 import org.entur.namtar.repository.persistence.DatabaseRepositoryImpl;
 import org.entur.namtar.repository.persistence.DatedServiceJourneyRepository;
 import org.entur.namtar.repository.persistence.SourceFileRepository;
 import org.entur.namtar.services.DataStorageService;
+import org.entur.namtar.services.DatedServiceJourneyKeyFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -27,6 +30,10 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import javax.persistence.EntityManager;
+import javax.sql.DataSource;
+import java.time.Duration;
+
 
 @Configuration
 public class DataStorageConfiguration {
@@ -35,11 +42,28 @@ public class DataStorageConfiguration {
     @Bean
     public DataStorageService createDatabaseStorageService(@Autowired DatedServiceJourneyRepository datedServiceJourneyRepository,
                                                            @Autowired SourceFileRepository sourceFileRepository,
-                                                           @Value("${app.namtar.cache.enabled:true}") boolean cacheEnabled) {
+                                                           @Autowired DataSource dataSource,
+                                                           @Autowired EntityManager entityManager,
+                                                           @Autowired PrometheusMetricsService metricsService,
+                                                           @Value("${app.namtar.cache.enabled:true}") boolean cacheEnabled,
+                                                           @Value("${namtar.key.filter.enabled:true}") boolean keyFilterEnabled,
+                                                           @Value("${namtar.key.filter.expected.insertions:20000000}") long keyFilterExpectedInsertions,
+                                                           @Value("${namtar.key.filter.fpp:0.01}") double keyFilterFpp,
+                                                           @Value("${namtar.key.filter.rescan.margin.minutes:10}") int keyFilterRescanMarginMinutes,
+                                                           @Autowired NetexImportProperties importProperties,
+                                                           @Value("${namtar.import.distributed:false}") boolean importDistributed) {
         logger.info("Initializing DataStorageService with DatabaseRepositoryImpl");
         if (!cacheEnabled) {
             logger.warn(" !!! CACHE DISABLED !!!");
         }
-        return new DataStorageService(new DatabaseRepositoryImpl(datedServiceJourneyRepository, sourceFileRepository), cacheEnabled);
+
+        // Only complete when this pod is the only one importing
+        DatedServiceJourneyKeyFilter keyFilter = null;
+        if (keyFilterEnabled && !importDistributed) {
+            Duration rescanPeriod = Duration.ofMinutes(importProperties.getTransactionTimeoutMinutes() + Math.max(keyFilterRescanMarginMinutes, 0));
+            keyFilter = new DatedServiceJourneyKeyFilter(keyFilterExpectedInsertions, keyFilterFpp, importProperties.getWindowDaysBefore(), rescanPeriod);
+            metricsService.registerKeyFilter(keyFilter);
+        }
+        return new DataStorageService(new DatabaseRepositoryImpl(datedServiceJourneyRepository, sourceFileRepository, dataSource, entityManager), cacheEnabled, keyFilter);
     }
 }
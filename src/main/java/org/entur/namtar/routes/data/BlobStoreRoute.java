@@ -15,27 +15,62 @@
 
 package org.entur.namtar.routes.data;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
+import org.entur.namtar.netex.DistributedImportQueue;
+import org.entur.namtar.netex.ImportRequestQueue;
 import org.entur.namtar.netex.NetexLoader;
 import org.entur.namtar.routes.RestRouteBuilder;
+import org.entur.namtar.services.BlobStoreService;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.InputStream;
+import java.util.List;
+
 @Service
 public class BlobStoreRoute extends RestRouteBuilder {
 
+    private static final String POLLING_ROUTE_ID = "namtar.blobstore.singleton.polling";
+
     private final NetexLoader netexLoader;
 
+    private final DistributedImportQueue distributedImportQueue;
+
+    private final ImportRequestQueue importRequestQueue;
+
+    private final BlobStoreService blobStoreService;
+
     @Value("${namtar.blobstore.polling.update.frequency}")
     private String updateFrequency;
 
     @Value("${namtar.import.disabled:false}")
     boolean importDisabled;
 
-    public BlobStoreRoute(@Autowired NetexLoader netexLoader) {
+    /*
+     * When enabled, the leader only lists blobs, and all pods import them
+     */
+    @Value("${namtar.import.distributed:false}")
+    boolean importDistributed;
+
+    @Value("${namtar.import.distributed.polling.frequency:30s}")
+    private String distributedPollingFrequency;
+
+    /*
+     * How often the leader checks for imports requested through /internal/import
+     */
+    @Value("${namtar.import.requests.polling.frequency:1s}")
+    private String requestPollingFrequency;
+
+    public BlobStoreRoute(@Autowired NetexLoader netexLoader, @Autowired DistributedImportQueue distributedImportQueue,
+                          @Autowired ImportRequestQueue importRequestQueue, @Autowired BlobStoreService blobStoreService) {
         this.netexLoader = netexLoader;
+        this.distributedImportQueue = distributedImportQueue;
+        this.importRequestQueue = importRequestQueue;
+        this.blobStoreService = blobStoreService;
     }
 
     @Override
@@ -45,7 +80,7 @@ public class BlobStoreRoute extends RestRouteBuilder {
         log.info("Polling for updates with frequency: [{}]", updateFrequency);
 
         singletonFrom("timer://namtar.blobstore.polling?fixedRate=true&period=" + updateFrequency,
-                "namtar.blobstore.singleton.polling")
+                POLLING_ROUTE_ID)
                 .process(p -> MDC.put("camel.breadcrumbId", p.getIn().getHeader("breadcrumbId", String.class)))
                 .choice()
                 .when(p -> importDisabled)
@@ -54,7 +89,7 @@ public class BlobStoreRoute extends RestRouteBuilder {
                 .when(p -> isLeader(p.getFromRouteId()))
                     .log("Is leader - polling for new files")
                     .to("direct:getAllBlobs")
-                    .wireTap("direct:loadBlobs")
+                    .wireTap(importDistributed ? "direct:publishImportTasks" : "direct:loadBlobs")
                 .endChoice()
                 .otherwise()
                     .log("Is NOT leader - doing nothing")
@@ -82,5 +117,71 @@ public class BlobStoreRoute extends RestRouteBuilder {
                 .process(p -> MDC.remove("camel.breadcrumbId"))
                 .routeId("blobstore-load")
         ;
+
+        from("direct:publishImportTasks")
+                .bean(distributedImportQueue, "publish")
+                .routeId("blobstore-publish-import-tasks")
+        ;
+
+        // Lets upstream trigger an import as soon as a file is written - the polling above remains as fallback
+        ObjectMapper mapper = new ObjectMapper();
+
+        rest("/internal")
+                .apiDocs(Boolean.FALSE)
+                .post("/import").consumes("application/json").produces("text/plain").to("direct:requestImport");
+
+        from("direct:requestImport")
+                .process(p -> p.getIn().setBody(List.of(mapper.readValue(p.getIn().getBody(InputStream.class), String[].class))))
+                .bean(importRequestQueue, "request")
+                .convertBodyTo(String.class)
+                .setHeader(Exchange.HTTP_RESPONSE_CODE, constant("202"))
+                .routeId("blobstore-request-import")
+        ;
+
+        // Runs on every pod, but only the pod leading the polling drains the requests, so files are never imported on two pods
+        from("timer://namtar.import.requests.polling?fixedRate=true&period=" + requestPollingFrequency)
+                .choice()
+                .when(p -> importDisabled)
+                    .log(LoggingLevel.DEBUG, "Import disabled - doing nothing")
+                .when(p -> isLeader(POLLING_ROUTE_ID) && (importDistributed || !netexLoader.isLoadingData()))
+                    .to("direct:importRequested")
+                .end()
+                .routeId("blobstore-import-requests")
+        ;
+
+        // Requested files are imported together with the older unprocessed files of their codespace, oldest first
+        if (importDistributed) {
+            from("direct:importRequested")
+                    .bean(importRequestQueue, "drain")
+                    .filter(simple("${body.size} > 0"))
+                        .process(p -> MDC.put("camel.breadcrumbId", p.getIn().getHeader("breadcrumbId", String.class)))
+                        .bean(blobStoreService, "getRequestedBlobs")
+                        .bean(distributedImportQueue, "publish")
+                        .process(p -> MDC.remove("camel.breadcrumbId"))
+                    .end()
+                    .routeId("blobstore-import-requested")
+            ;
+        } else {
+            // Drained by the loader once no other import is running, so that no request is lost
+            from("direct:importRequested")
+                    .process(p -> netexLoader.loadRequestedNetex(() -> blobStoreService.getRequestedBlobs(importRequestQueue.drain())))
+                    .routeId("blobstore-import-requested")
+            ;
+        }
+
+        if (importDistributed) {
+            log.info("Importing on all pods, polling for import tasks with frequency: [{}]", distributedPollingFrequency);
+
+            // Not a singleton - runs on every pod
+            from("timer://namtar.import.distributed.polling?fixedRate=true&period=" + distributedPollingFrequency)
+                    .choice()
+                    .when(p -> importDisabled)
+                        .log(LoggingLevel.DEBUG, "Import disabled - doing nothing")
+                    .otherwise()
+                        .bean(distributedImportQueue, "claimAndImport")
+                    .end()
+                    .routeId("blobstore-distributed-import")
+            ;
+        }
     }
 }
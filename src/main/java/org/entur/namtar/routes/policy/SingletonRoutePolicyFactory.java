@@ -16,6 +16,7 @@
 
 package org.entur.namtar.routes.policy;
 
+import com.hazelcast.core.HazelcastInstance;
 import org.apache.camel.CamelContext;
 import org.apache.camel.NamedNode;
 import org.apache.camel.component.hazelcast.policy.HazelcastRoutePolicy;
@@ -57,6 +58,13 @@ public class SingletonRoutePolicyFactory extends HazelCastService implements Rou
         return hazelcastRoutePolicy;
     }
 
+    /**
+     * @return the Hazelcast instance shared by the cluster - available after initialization
+     */
+    public HazelcastInstance getHazelcastInstance() {
+        return hazelcast;
+    }
+
     @Override
     public RoutePolicy createRoutePolicy(CamelContext camelContext, String routeId, NamedNode namedNode) {
         try {
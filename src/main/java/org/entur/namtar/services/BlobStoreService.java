@@ -16,9 +16,12 @@
 
 package org.entur.namtar.services;
 
-import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
+import org.entur.namtar.model.ImportWatermark;
+import org.entur.namtar.netex.NetexLoader;
 import org.entur.namtar.repository.blobstore.BlobStoreRepository;
+import org.entur.namtar.repository.persistence.ImportWatermarkRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -26,17 +29,30 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 
 
+/**
+ * Lists the NeTEx-files to import, oldest first.
+ *
+ * The blob store can only filter listings by name, and names are not ordered by update time - so every listing still
+ * reads the names in the subfolder. Only blobs updated after the watermark are checked against the processed files.
+ */
 @Service
 public class BlobStoreService {
 
 	private final Logger log = LoggerFactory.getLogger(BlobStoreService.class);
 
+	static final String WATERMARK_NAME = "blobstore";
+
 	BlobStoreRepository repository;
 
 	Storage storage;
@@ -45,13 +61,63 @@ public class BlobStoreService {
 
 	String subFolder;
 
+	private final ImportWatermarkRepository watermarkRepository;
+
+	private final DataStorageService storageService;
+
+	/*
+	 * Max number of unprocessed blobs returned per listing - the rest are returned by the following listings
+	 */
+	private final int batchSize;
+
+	/*
+	 * Blobs updated this long before the watermark are also listed, in case they became visible after newer blobs
+	 */
+	private final Duration overlap;
+
+	/*
+	 * Blobs older than the watermark are also listed this often, in case any were missed
+	 */
+	private final Duration reconciliationInterval;
+
+	/*
+	 * Blobs whose import has failed this many times no longer hold back the watermark - they are then only listed
+	 * again by the reconciliation listing. Blobs that have not been attempted, e.g. while the loader was busy, always
+	 * hold it back.
+	 */
+	private final int maxFailedAttempts;
+
+	private Instant lastFullListing;
+
+	/*
+	 * Returned by the previous listing, in update-time order - used to advance the watermark once they are processed
+	 */
+	private List<BlobInfo> previousBatch = List.of();
+
+	/*
+	 * All blobs listed up to this update time were either processed or in the previous batch
+	 */
+	private Long previousBatchCoversUpTo;
+
 	public BlobStoreService(@Autowired BlobStoreRepository repository, @Autowired Storage storage,
+							@Autowired ImportWatermarkRepository watermarkRepository,
+							@Autowired DataStorageService storageService,
 							@Value("${blobstore.gcs.container.name}") String containerName,
-							@Value("${blobstore.gcs.subfolder}") String subFolder) {
+							@Value("${blobstore.gcs.subfolder}") String subFolder,
+							@Value("${namtar.blobstore.listing.batch.size:1000}") int batchSize,
+							@Value("${namtar.blobstore.listing.overlap.minutes:10}") int overlapMinutes,
+							@Value("${namtar.blobstore.reconciliation.interval.hours:24}") int reconciliationIntervalHours,
+							@Value("${namtar.blobstore.listing.max.failed.attempts:3}") int maxFailedAttempts) {
 		this.repository = repository;
 		this.storage = storage;
+		this.watermarkRepository = watermarkRepository;
+		this.storageService = storageService;
 		this.containerName = containerName;
 		this.subFolder = subFolder;
+		this.batchSize = Math.max(batchSize, 1);
+		this.overlap = Duration.ofMinutes(Math.max(overlapMinutes, 0));
+		this.reconciliationInterval = Duration.ofHours(Math.max(reconciliationIntervalHours, 0));
+		this.maxFailedAttempts = Math.max(maxFailedAttempts, 1);
 	}
 
 	@PostConstruct
@@ -60,18 +126,138 @@ public class BlobStoreService {
 		repository.setContainerName(containerName);
 	}
 
-	public Iterator<Blob> getAllBlobs() {
+	/**
+	 * Lists the unprocessed blobs updated after the watermark, oldest first and at most batchSize. All blobs are
+	 * checked on the first listing, and then once every reconciliation interval.
+	 */
+	public synchronized Iterator<BlobInfo> getAllBlobs() {
 		log.info("Getting all files");
 
 		long t1 = System.currentTimeMillis();
-        Iterator<Blob> blobIterator = repository.listBlobs(subFolder);
-        List<Blob> blobs = new ArrayList<>();
-        blobIterator.forEachRemaining(blobs::add);
+		advanceWatermark();
+
+		Instant now = Instant.now();
+		boolean fullListing = lastFullListing == null || !now.isBefore(lastFullListing.plus(reconciliationInterval));
+		long listedAfter = fullListing ? Long.MIN_VALUE : getWatermark() - overlap.toMillis();
+
+		// Newest on top, so that only the oldest batchSize blobs are kept while listing
+		PriorityQueue<BlobInfo> oldestBlobs = new PriorityQueue<>(Comparator.comparing(BlobInfo::getUpdateTime).reversed());
+		int listedCounter = 0;
+		int newerCounter = 0;
+		Long newestUpdateTime = null;
+		Iterator<BlobInfo> blobIterator = repository.listBlobs(subFolder);
+		while (blobIterator != null && blobIterator.hasNext()) {
+			BlobInfo blob = blobIterator.next();
+			listedCounter++;
+			if (blob.getUpdateTime() <= listedAfter) {
+				continue;
+			}
+			if (newestUpdateTime == null || blob.getUpdateTime() > newestUpdateTime) {
+				newestUpdateTime = blob.getUpdateTime();
+			}
+			if (isProcessed(blob)) {
+				continue;
+			}
+			newerCounter++;
+			oldestBlobs.add(blob);
+			if (oldestBlobs.size() > batchSize) {
+				oldestBlobs.poll();
+			}
+		}
 
-        blobs.sort(Comparator.comparing(Blob::getUpdateTime));
+		List<BlobInfo> blobs = new ArrayList<>(oldestBlobs);
+		blobs.sort(Comparator.comparing(BlobInfo::getUpdateTime));
+		previousBatch = blobs;
+		// Unprocessed blobs left out of a full batch may be older than the newest listed
+		previousBatchCoversUpTo = blobs.size() < newerCounter ? blobs.get(blobs.size() - 1).getUpdateTime() : newestUpdateTime;
+		if (fullListing) {
+			lastFullListing = now;
+		}
 
-        log.info("Got {} files in {} ms", blobs.size(), (System.currentTimeMillis()-t1));
+		log.info("Got {} of {} unprocessed files from {} {} files in {} ms", blobs.size(), newerCounter, listedCounter,
+				fullListing ? "listed" : "incrementally listed", (System.currentTimeMillis()-t1));
 
-        return blobs.iterator();
-    }
+		return blobs.iterator();
+	}
+
+	/**
+	 * Looks up the requested blobs that are not processed, together with the older unprocessed blobs of the same
+	 * codespaces - so that a requested file is never imported ahead of an older file of its codespace.
+	 *
+	 * @return the blobs oldest first
+	 */
+	public Iterator<BlobInfo> getRequestedBlobs(List<String> blobNames) {
+		// Newest requested blob for each codespace, by the listing prefix of the codespace
+		Map<String, Long> newestByCodespacePrefix = new HashMap<>();
+		for (String blobName : blobNames) {
+			BlobInfo blob = repository.getBlobInfo(blobName);
+			if (blob == null) {
+				log.warn("Requested file {} was not found", blobName);
+				continue;
+			}
+			String codespacePrefix = blobName.substring(0, blobName.lastIndexOf('/') + 1) + NetexLoader.getCodespace(blobName);
+			newestByCodespacePrefix.merge(codespacePrefix, blob.getUpdateTime(), Math::max);
+		}
+
+		List<BlobInfo> blobs = new ArrayList<>();
+		newestByCodespacePrefix.forEach((codespacePrefix, newestUpdateTime) -> {
+			String codespace = NetexLoader.getCodespace(codespacePrefix);
+			Iterator<BlobInfo> blobIterator = repository.listBlobs(codespacePrefix);
+			while (blobIterator != null && blobIterator.hasNext()) {
+				BlobInfo blob = blobIterator.next();
+				if (blob.getUpdateTime() <= newestUpdateTime && codespace.equals(NetexLoader.getCodespace(blob.getName())) && !isProcessed(blob)) {
+					blobs.add(blob);
+				}
+			}
+		});
+		blobs.sort(Comparator.comparing(BlobInfo::getUpdateTime).thenComparing(BlobInfo::getName));
+		return blobs.iterator();
+	}
+
+	/*
+	 * Moves the watermark past the blobs from the previous listing that have been processed since, up to the first
+	 * one that has not - unless the import of that one has failed too many times
+	 */
+	private void advanceWatermark() {
+		Long processedUpTo = previousBatchCoversUpTo;
+		Long passedUpTo = null;
+		for (BlobInfo blob : previousBatch) {
+			if (!isProcessed(blob)) {
+				int failedAttempts = storageService.getFailedAttempts(getFilename(blob));
+				if (failedAttempts < maxFailedAttempts) {
+					// Kept below the blob, so that it is listed again
+					processedUpTo = passedUpTo != null ? Math.min(passedUpTo, blob.getUpdateTime() - 1) : null;
+					break;
+				}
+				log.warn("Import of {} has failed {} times - no longer holding back the import watermark", blob.getName(), failedAttempts);
+			}
+			passedUpTo = blob.getUpdateTime();
+		}
+		previousBatch = List.of();
+		previousBatchCoversUpTo = null;
+
+		if (processedUpTo != null && processedUpTo > getWatermark()) {
+			watermarkRepository.save(new ImportWatermark(WATERMARK_NAME, processedUpTo));
+			log.info("Import watermark advanced to {}", Instant.ofEpochMilli(processedUpTo));
+		}
+	}
+
+	/*
+	 * Read on every listing, as it may have been advanced by a previous leader
+	 */
+	private long getWatermark() {
+		return watermarkRepository.findById(WATERMARK_NAME)
+				.map(ImportWatermark::getUpdateTime)
+				.orElse(0L);
+	}
+
+	private boolean isProcessed(BlobInfo blob) {
+		String filename = getFilename(blob);
+		return filename.isEmpty() || storageService.isAlreadyProcessed(filename);
+	}
+
+	private static String getFilename(BlobInfo blob) {
+		String name = blob.getName();
+		return name.substring(name.lastIndexOf('/') + 1);
+	}
 }
@@ -0,0 +1,120 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.namtar.services;
+
+import org.entur.namtar.model.CreationNumberBlock;
+import org.entur.namtar.repository.persistence.CreationNumberBlockRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands out unique creation numbers across threads and pods.
+ *
+ * Blocks of numbers are reserved from the database with a row lock, and handed out lock-free within the process.
+ * Numbers left in a block when the application stops are never used.
+ */
+@Service
+public class CreationNumberAllocator {
+
+    private static final Logger logger = LoggerFactory.getLogger(CreationNumberAllocator.class);
+
+    static final String BLOCK_NAME = "DatedServiceJourney";
+
+    private final CreationNumberBlockRepository repository;
+
+    private final DataStorageService storageService;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final int blockSize;
+
+    private final AtomicReference<Block> currentBlock = new AtomicReference<>(new Block(0, 0));
+
+    public CreationNumberAllocator(@Autowired CreationNumberBlockRepository repository,
+                                   @Autowired DataStorageService storageService,
+                                   @Autowired PlatformTransactionManager transactionManager,
+                                   @Value("${namtar.creation.number.block.size:1000}") int blockSize) {
+        this.repository = repository;
+        this.storageService = storageService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.blockSize = Math.max(blockSize, 1);
+    }
+
+    public long next() {
+        while (true) {
+            Block block = currentBlock.get();
+            long creationNumber = block.next.getAndIncrement();
+            if (creationNumber < block.end) {
+                return creationNumber;
+            }
+            synchronized (this) {
+                // Only one thread reserves a new block - the others retry with it
+                if (currentBlock.get() == block) {
+                    currentBlock.set(reserveBlock());
+                }
+            }
+        }
+    }
+
+    private Block reserveBlock() {
+        while (true) {
+            try {
+                Block block = transactionTemplate.execute(status -> {
+                    CreationNumberBlock stored = repository.findForUpdate(BLOCK_NAME);
+                    if (stored == null) {
+                        // First use - continue from the numbers already stored
+                        long start = storageService.findNextCreationNumber();
+                        logger.info("Initializing creation numbers from {}", start);
+                        stored = new CreationNumberBlock(BLOCK_NAME, start);
+                    }
+                    long start = stored.getNextValue();
+                    stored.setNextValue(start + blockSize);
+                    repository.saveAndFlush(stored);
+                    return new Block(start, start + blockSize);
+                });
+                logger.info("Reserved creation numbers {} - {}", block.start, block.end - 1);
+                return block;
+            } catch (DataIntegrityViolationException e) {
+                // Initialized concurrently by another pod - retry with the stored row
+                logger.info("Creation numbers initialized concurrently, retrying");
+            }
+        }
+    }
+
+    private static final class Block {
+        private final long start;
+        private final long end;
+        private final AtomicLong next;
+
+        private Block(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.next = new AtomicLong(start);
+        }
+    }
+}
@@ -27,9 +27,12 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
-public class DataStorageService {
+public class DataStorageService implements DatedServiceJourneyLookup {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private final StorageRepository repository;
@@ -39,27 +42,34 @@ public class DataStorageService {
             .recordStats()
             .build();
 
-    private final Cache<String, String> processedFileNameCache = CacheBuilder.newBuilder()
-            .expireAfterAccess(1, TimeUnit.DAYS)
-            .build();
+    /*
+     * Names of all processed files - loaded once, and kept current by setFileStatus. Files processed by other pods
+     * are looked up in the database when they are not found.
+     */
+    private final Set<String> processedFileNames = ConcurrentHashMap.newKeySet();
+    private volatile boolean processedFileNamesLoaded;
 
     private final boolean cacheEnabled;
 
+    /*
+     * Only used when importing, null when disabled
+     */
+    private final DatedServiceJourneyKeyFilter keyFilter;
+
     private int searchCount;
 
     public DataStorageService(StorageRepository repository, boolean cacheEnabled) {
+        this(repository, cacheEnabled, null);
+    }
+
+    public DataStorageService(StorageRepository repository, boolean cacheEnabled, DatedServiceJourneyKeyFilter keyFilter) {
         logger.info("Initializing DataStorageService");
         this.repository = repository;
         this.cacheEnabled = cacheEnabled;
+        this.keyFilter = keyFilter;
         logger.info("Initializing DataStorageService - done");
     }
 
-    private void addSourceFileToCache(String sourceFileName) {
-        if (sourceFileName != null) {
-            processedFileNameCache.put(createCacheKey(sourceFileName), sourceFileName);
-        }
-    }
-
     private DatedServiceJourney addToCache(DatedServiceJourney datedServiceJourney) {
         if (cacheEnabled && datedServiceJourney != null) {
             String[] cacheKeys = createCacheKeys(datedServiceJourney);
@@ -86,6 +96,48 @@ public class DataStorageService {
     public void addDatedServiceJourney(DatedServiceJourney journey) {
         repository.save(journey);
         addToCache(journey);
+        if (keyFilter != null) {
+            keyFilter.add(journey);
+        }
+    }
+
+    /**
+     * Bulk insert of new DatedServiceJourneys, e.g. all created from one file. Joins the current transaction, and
+     * the cache is only updated once it commits.
+     */
+    public void addDatedServiceJourneys(List<DatedServiceJourney> journeys) {
+        repository.saveAll(journeys);
+        TransactionCallbacks.afterCommit(() -> {
+            for (DatedServiceJourney journey : journeys) {
+                addToCache(journey);
+                if (keyFilter != null) {
+                    keyFilter.add(journey);
+                }
+            }
+        });
+    }
+
+    /**
+     * Brings the key filter up to date with rows stored by others - must be called before importing
+     */
+    public void refreshKeyFilter() {
+        if (keyFilter != null) {
+            keyFilter.refresh(repository);
+        }
+    }
+
+    /*
+     * False when the key filter knows that no DatedServiceJourney exists for the serviceJourneyId on the date
+     */
+    boolean mightContainServiceJourney(String serviceJourneyId, String departureDate) {
+        return keyFilter == null || keyFilter.mightContainServiceJourney(serviceJourneyId, departureDate);
+    }
+
+    /*
+     * False when the key filter knows that no DatedServiceJourney exists for the privateCode on the date
+     */
+    boolean mightContainPrivateCode(String privateCode, String departureDate) {
+        return keyFilter == null || keyFilter.mightContainPrivateCode(privateCode, departureDate);
     }
 
     private DatedServiceJourney findInCache(String... keys) {
@@ -95,6 +147,7 @@ public class DataStorageService {
         return cache.getIfPresent(createCacheKey(keys));
     }
 
+    @Override
     public DatedServiceJourney findByServiceJourneyIdAndDate(String serviceJourneyId, String departureDate) {
         DatedServiceJourney cachedValue = findInCache(serviceJourneyId, departureDate);
         if (cachedValue != null) {
@@ -106,6 +159,7 @@ public class DataStorageService {
 
 
 
+    @Override
     public DatedServiceJourney findByDatedServiceJourneyId(String datedServiceJourneyId) {
         DatedServiceJourney cachedValue = findInCache(datedServiceJourneyId);
         if (cachedValue != null) {
@@ -118,6 +172,7 @@ public class DataStorageService {
         return repository.findByOriginalDatedServiceJourneyId(datedServiceJourneyId);
     }
 
+    @Override
     public DatedServiceJourney findByPrivateCodeDepartureDate(String privateCode, String departureDate) {
         DatedServiceJourney cachedValue = findInCache(privateCode, departureDate);
         if (cachedValue != null) {
@@ -126,19 +181,47 @@ public class DataStorageService {
         return addToCache(repository.findByPrivateCodeDepartureDate(privateCode, departureDate));
     }
 
+    /**
+     * Finds all existing DatedServiceJourneys matching any of the given serviceJourneyIds, privateCodes or
+     * datedServiceJourneyIds on the given departureDates - using a few set-based queries per key type instead
+     * of one lookup per departure.
+     */
+    DatedServiceJourneyIndex findExisting(Collection<String> serviceJourneyIds, Collection<String> privateCodes,
+                                          Collection<String> datedServiceJourneyIds, Collection<String> departureDates) {
+        DatedServiceJourneyIndex index = new DatedServiceJourneyIndex();
+        index.addAll(repository.findByServiceJourneyIdsAndDates(serviceJourneyIds, departureDates));
+        index.addAll(repository.findByPrivateCodesAndDepartureDates(privateCodes, departureDates));
+        index.addAll(repository.findByDatedServiceJourneyIds(datedServiceJourneyIds));
+        return index;
+    }
+
     public boolean isAlreadyProcessed(String name) {
-        String key = createCacheKey(name);
-        if (processedFileNameCache.getIfPresent(key) != null) {
+        loadProcessedFileNames();
+        if (processedFileNames.contains(name)) {
             return true;
         }
         SourceFile alreadyProcessed = repository.findSourceFileByName(name);
         if (alreadyProcessed != null && alreadyProcessed.isProcessed()) {
-            addSourceFileToCache(name);
+            processedFileNames.add(name);
             return true;
         }
         return false;
     }
 
+    private void loadProcessedFileNames() {
+        if (processedFileNamesLoaded) {
+            return;
+        }
+        synchronized (processedFileNames) {
+            if (!processedFileNamesLoaded) {
+                long t1 = System.currentTimeMillis();
+                processedFileNames.addAll(repository.findProcessedSourceFileNames());
+                processedFileNamesLoaded = true;
+                logger.info("Loaded {} processed file names in {} ms", processedFileNames.size(), (System.currentTimeMillis() - t1));
+            }
+        }
+    }
+
 
     public void setFileStatus(String filename, boolean isProcessed) {
         SourceFile alreadyProcessed = repository.findSourceFileByName(filename);
@@ -146,11 +229,56 @@ public class DataStorageService {
             alreadyProcessed = new SourceFile(filename, isProcessed);
         }
         alreadyProcessed.setProcessed(isProcessed);
+        if (isProcessed) {
+            alreadyProcessed.setCheckpoint(null);
+        }
         repository.save(alreadyProcessed);
 
         if (isProcessed) {
-            processedFileNameCache.put(filename, filename);
+            TransactionCallbacks.afterCommit(() -> processedFileNames.add(filename));
+        } else {
+            TransactionCallbacks.afterCommit(() -> processedFileNames.remove(filename));
+        }
+    }
+
+    /**
+     * @return the last committed zip-entry of a file that was partially imported, or null
+     */
+    public String getFileCheckpoint(String filename) {
+        SourceFile sourceFile = repository.findSourceFileByName(filename);
+        if (sourceFile == null || sourceFile.isProcessed()) {
+            return null;
+        }
+        return sourceFile.getCheckpoint();
+    }
+
+    public void setFileCheckpoint(String filename, String checkpoint) {
+        SourceFile sourceFile = repository.findSourceFileByName(filename);
+        if (sourceFile == null) {
+            sourceFile = new SourceFile(filename, false);
+        }
+        sourceFile.setCheckpoint(checkpoint);
+        repository.save(sourceFile);
+    }
+
+    /**
+     * @return the number of imports of a file that is not yet processed that have failed
+     */
+    public int getFailedAttempts(String filename) {
+        SourceFile sourceFile = repository.findSourceFileByName(filename);
+        if (sourceFile == null || sourceFile.isProcessed()) {
+            return 0;
+        }
+        return sourceFile.getFailedAttempts();
+    }
+
+    public void markFileFailed(String filename) {
+        SourceFile sourceFile = repository.findSourceFileByName(filename);
+        if (sourceFile == null) {
+            sourceFile = new SourceFile(filename, false);
         }
+        sourceFile.setFailedAttempts(sourceFile.getFailedAttempts() + 1);
+        repository.save(sourceFile);
     }
 
     /*
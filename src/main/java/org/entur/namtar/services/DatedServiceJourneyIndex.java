@@ -0,0 +1,68 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.namtar.services;
+
+import org.entur.namtar.model.DatedServiceJourney;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory lookup of DatedServiceJourneys preloaded for a whole file. Created DatedServiceJourneys are added as
+ * they are created, so that later departures in the same file see them.
+ */
+class DatedServiceJourneyIndex implements DatedServiceJourneyLookup {
+
+    private final Map<String, DatedServiceJourney> byServiceJourneyIdAndDate = new HashMap<>();
+    private final Map<String, DatedServiceJourney> byPrivateCodeAndDate = new HashMap<>();
+    private final Map<String, DatedServiceJourney> byDatedServiceJourneyId = new HashMap<>();
+
+    void addAll(Collection<DatedServiceJourney> datedServiceJourneys) {
+        for (DatedServiceJourney datedServiceJourney : datedServiceJourneys) {
+            add(datedServiceJourney);
+        }
+    }
+
+    void add(DatedServiceJourney datedServiceJourney) {
+        byServiceJourneyIdAndDate.putIfAbsent(createKey(datedServiceJourney.getServiceJourneyId(), datedServiceJourney.getDepartureDate()), datedServiceJourney);
+        byDatedServiceJourneyId.putIfAbsent(datedServiceJourney.getDatedServiceJourneyId(), datedServiceJourney);
+
+        // Same as the single lookup - the first created DatedServiceJourney with the privateCode
+        byPrivateCodeAndDate.merge(createKey(datedServiceJourney.getPrivateCode(), datedServiceJourney.getDepartureDate()), datedServiceJourney,
+                (existing, added) -> added.getCreationNumber() < existing.getCreationNumber() ? added : existing);
+    }
+
+    @Override
+    public DatedServiceJourney findByServiceJourneyIdAndDate(String serviceJourneyId, String departureDate) {
+        return byServiceJourneyIdAndDate.get(createKey(serviceJourneyId, departureDate));
+    }
+
+    @Override
+    public DatedServiceJourney findByPrivateCodeDepartureDate(String privateCode, String departureDate) {
+        return byPrivateCodeAndDate.get(createKey(privateCode, departureDate));
+    }
+
+    @Override
+    public DatedServiceJourney findByDatedServiceJourneyId(String datedServiceJourneyId) {
+        return byDatedServiceJourneyId.get(datedServiceJourneyId);
+    }
+
+    private static String createKey(String id, String departureDate) {
+        return id + "|" + departureDate;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.namtar.services;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.entur.namtar.model.DatedServiceJourney;
+import org.entur.namtar.repository.persistence.StorageRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Bloom filter over the serviceJourneyId/departureDate and privateCode/departureDate keys of stored DatedServiceJourneys,
+ * used to skip lookups for departures that definitely do not exist yet.
+ *
+ * Only covers departures on or after the date it was built from, and only sees rows written by this pod in between
+ * refreshes - so it must be refreshed before each import, and can not be used when several pods import concurrently.
+ *
+ * Ids are not committed in order, so each refresh also scans the rows created since rescanPeriod before the previous
+ * scan started. Import transactions time out before that, so rows committed after a scan are always found by the
+ * next one.
+ */
+public class DatedServiceJourneyKeyFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatedServiceJourneyKeyFilter.class);
+
+    private final long minExpectedInsertions;
+    private final double falsePositiveProbability;
+    private final int daysBefore;
+    private final Duration rescanPeriod;
+
+    /*
+     * Replaced as a whole, so lookups never see a filter and a date that do not belong together
+     */
+    private volatile FilterState state;
+
+    /*
+     * Set while a new filter is populated, so rows added in the meantime are also put in the new filter
+     */
+    private volatile BloomFilter<CharSequence> rebuilding;
+
+    private volatile long lastSeenId;
+
+    private volatile Instant lastScanStarted;
+
+    public DatedServiceJourneyKeyFilter(long expectedInsertions, double falsePositiveProbability, int daysBefore, Duration rescanPeriod) {
+        this.minExpectedInsertions = expectedInsertions;
+        this.falsePositiveProbability = falsePositiveProbability;
+        this.daysBefore = Math.max(daysBefore, 0);
+        this.rescanPeriod = rescanPeriod;
+    }
+
+    /**
+     * Adds rows stored by others since the last refresh - or rebuilds the filter from scratch when not yet built, or full
+     */
+    synchronized void refresh(StorageRepository repository) {
+        long t1 = System.currentTimeMillis();
+        FilterState current = state;
+        if (current == null || current.filter.approximateElementCount() > current.expectedInsertions) {
+            current = rebuild(repository, current);
+        } else {
+            // Rows that were committed after the last refresh, with a lower id than the highest seen, are added again
+            Instant scanStarted = Instant.now();
+            Timestamp createdFrom = Timestamp.from(lastScanStarted.minus(rescanPeriod));
+            BloomFilter<CharSequence> filter = current.filter;
+            long maxId = repository.scanKeys(current.coveredFromDate, lastSeenId, createdFrom,
+                    (serviceJourneyId, privateCode, departureDate) -> put(filter, serviceJourneyId, privateCode, departureDate));
+            lastSeenId = Math.max(lastSeenId, maxId);
+            lastScanStarted = scanStarted;
+        }
+        logger.info("Refreshed key filter in {} ms - {} keys, expected false positive probability {}",
+                (System.currentTimeMillis() - t1), current.filter.approximateElementCount(), current.filter.expectedFpp());
+    }
+
+    /*
+     * The current filter is used until the new one is fully populated
+     */
+    private FilterState rebuild(StorageRepository repository, FilterState previous) {
+        long size = Math.max(minExpectedInsertions, previous != null ? previous.filter.approximateElementCount() * 2 : 0);
+
+        BloomFilter<CharSequence> newFilter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), size, falsePositiveProbability);
+        String fromDate = LocalDate.now().minusDays(daysBefore).format(DateTimeFormatter.ISO_LOCAL_DATE);
+        rebuilding = newFilter;
+        try {
+            Instant scanStarted = Instant.now();
+            long maxId = repository.scanKeys(fromDate, 0, null, (serviceJourneyId, privateCode, departureDate) -> put(newFilter, serviceJourneyId, privateCode, departureDate));
+            lastSeenId = maxId;
+            lastScanStarted = scanStarted;
+            state = new FilterState(newFilter, fromDate, size);
+        } finally {
+            rebuilding = null;
+        }
+        logger.info("Rebuilt key filter for departures from {} with capacity {}", fromDate, size);
+        return state;
+    }
+
+    /**
+     * Called after the row is committed - so a rebuild started later will also find it in the database
+     */
+    void add(DatedServiceJourney datedServiceJourney) {
+        // Read before the current filter, as the new filter is made current before it is cleared
+        BloomFilter<CharSequence> next = rebuilding;
+        if (next != null) {
+            put(next, datedServiceJourney.getServiceJourneyId(), datedServiceJourney.getPrivateCode(), datedServiceJourney.getDepartureDate());
+        }
+        FilterState current = state;
+        if (current != null && current.filter != next) {
+            put(current.filter, datedServiceJourney.getServiceJourneyId(), datedServiceJourney.getPrivateCode(), datedServiceJourney.getDepartureDate());
+        }
+    }
+
+    private static void put(BloomFilter<CharSequence> filter, String serviceJourneyId, String privateCode, String departureDate) {
+        filter.put(serviceJourneyKey(serviceJourneyId, departureDate));
+        if (privateCode != null) {
+            filter.put(privateCodeKey(privateCode, departureDate));
+        }
+    }
+
+    /**
+     * @return false if no DatedServiceJourney exists for the serviceJourneyId on the date
+     */
+    boolean mightContainServiceJourney(String serviceJourneyId, String departureDate) {
+        return mightContain(serviceJourneyKey(serviceJourneyId, departureDate), departureDate);
+    }
+
+    /**
+     * @return false if no DatedServiceJourney exists for the privateCode on the date
+     */
+    boolean mightContainPrivateCode(String privateCode, String departureDate) {
+        return mightContain(privateCodeKey(privateCode, departureDate), departureDate);
+    }
+
+    private boolean mightContain(String key, String departureDate) {
+        FilterState current = state;
+        if (current == null || departureDate == null || departureDate.compareTo(current.coveredFromDate) < 0) {
+            return true;
+        }
+        return current.filter.mightContain(key);
+    }
+
+    private static String serviceJourneyKey(String serviceJourneyId, String departureDate) {
+        return "S|" + serviceJourneyId + "|" + departureDate;
+    }
+
+    private static String privateCodeKey(String privateCode, String departureDate) {
+        return "P|" + privateCode + "|" + departureDate;
+    }
+
+    public double getExpectedFalsePositiveProbability() {
+        FilterState current = state;
+        return current != null ? current.filter.expectedFpp() : 0;
+    }
+
+    public long getApproximateElementCount() {
+        FilterState current = state;
+        return current != null ? current.filter.approximateElementCount() : 0;
+    }
+
+    /**
+     * @return approximate size of the filter, calculated from its capacity as Guava does
+     */
+    public long getMemoryBytes() {
+        FilterState current = state;
+        if (current == null) {
+            return 0;
+        }
+        double bits = -current.expectedInsertions * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2));
+        return (long) (bits / 8);
+    }
+
+    private static class FilterState {
+        private final BloomFilter<CharSequence> filter;
+        private final String coveredFromDate;
+        private final long expectedInsertions;
+
+        FilterState(BloomFilter<CharSequence> filter, String coveredFromDate, long expectedInsertions) {
+            this.filter = filter;
+            this.coveredFromDate = coveredFromDate;
+            this.expectedInsertions = expectedInsertions;
+        }
+    }
+}
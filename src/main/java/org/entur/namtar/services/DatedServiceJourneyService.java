@@ -31,7 +31,10 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import static org.entur.namtar.metrics.SearchType.DATED_SERVICE_JOURNEY;
 import static org.entur.namtar.metrics.SearchType.ORIGINAL_DATED_SERVICE_JOURNEY;
@@ -50,34 +53,103 @@ public class DatedServiceJourneyService {
 
     private final String GENERATED_ID_PREFIX;
 
-    private long nextId;
+    private final CreationNumberAllocator creationNumberAllocator;
 
     private KafkaPublisher kafkaNotifier;
 
     public DatedServiceJourneyService(@Autowired DataStorageService storageService,
                                       @Autowired KafkaPublisher kafkaNotifier,
                                       @Value("${namtar.generated.id.prefix}") String idPrefix,
-                                      @Autowired PrometheusMetricsService metricsService) {
+                                      @Autowired PrometheusMetricsService metricsService,
+                                      @Autowired CreationNumberAllocator creationNumberAllocator) {
         logger.info("Initializing DatedServiceJourneyService");
         this.storageService = storageService;
+        this.creationNumberAllocator = creationNumberAllocator;
         this.kafkaNotifier = kafkaNotifier;
         GENERATED_ID_PREFIX = idPrefix;
         this.metricsService = metricsService;
-        updateNextCreationNumber();
         logger.info("Initializing DatedServiceJourneyService - done");
     }
 
-    public void updateNextCreationNumber() {
-        nextId = this.storageService.findNextCreationNumber();
+    public DatedServiceJourney createDatedServiceJourney(DatedServiceJourney serviceJourney, LocalDateTime publicationTimestamp, String sourceFileName) {
+        return createDatedServiceJourney(serviceJourney, publicationTimestamp.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME), sourceFileName);
     }
 
-    public DatedServiceJourney createDatedServiceJourney(DatedServiceJourney serviceJourney, LocalDateTime publicationTimestamp, String sourceFileName) {
+    /**
+     * @param publicationTimestamp formatted as ISO_LOCAL_DATE_TIME - formatted once per file, and shared by all created DatedServiceJourneys
+     */
+    public DatedServiceJourney createDatedServiceJourney(DatedServiceJourney serviceJourney, String publicationTimestamp, String sourceFileName) {
+        return createDatedServiceJourney(serviceJourney, publicationTimestamp, sourceFileName, storageService, kafkaNotifier::publishToKafka);
+    }
+
+    /**
+     * Bulk version of createDatedServiceJourney for all departures in a file. Existing DatedServiceJourneys are
+     * resolved with a few set-based queries up front, and the same rules are then applied in memory.
+     *
+     * New original DatedServiceJourneys are published when the current transaction commits.
+     *
+     * @return the DatedServiceJourneys that should be added - departures that already exist are left out
+     */
+    public List<DatedServiceJourney> createDatedServiceJourneys(List<DatedServiceJourney> serviceJourneys, String publicationTimestamp, String sourceFileName) {
+        List<DatedServiceJourney> created = new ArrayList<>();
+        if (serviceJourneys.isEmpty()) {
+            return created;
+        }
+
+        long t1 = System.currentTimeMillis();
+
+        Set<String> serviceJourneyIds = new HashSet<>();
+        Set<String> privateCodes = new HashSet<>();
+        Set<String> datedServiceJourneyIds = new HashSet<>();
+        Set<String> departureDates = new HashSet<>();
+        int skippedLookups = 0;
+        for (DatedServiceJourney serviceJourney : serviceJourneys) {
+            // Only looked up when it may already exist
+            if (storageService.mightContainServiceJourney(serviceJourney.getServiceJourneyId(), serviceJourney.getDepartureDate())) {
+                serviceJourneyIds.add(serviceJourney.getServiceJourneyId());
+            } else {
+                skippedLookups++;
+            }
+            if (storageService.mightContainPrivateCode(serviceJourney.getPrivateCode(), serviceJourney.getDepartureDate())) {
+                privateCodes.add(serviceJourney.getPrivateCode());
+            } else {
+                skippedLookups++;
+            }
+            departureDates.add(serviceJourney.getDepartureDate());
+            if (serviceJourney.getDatedServiceJourneyId() != null && !serviceJourney.getDatedServiceJourneyId().isEmpty()) {
+                datedServiceJourneyIds.add(serviceJourney.getDatedServiceJourneyId());
+            }
+        }
+
+        DatedServiceJourneyIndex existing = storageService.findExisting(serviceJourneyIds, privateCodes, datedServiceJourneyIds, departureDates);
+        long t2 = System.currentTimeMillis();
+
+        List<DatedServiceJourney> newOriginals = new ArrayList<>();
+        for (DatedServiceJourney serviceJourney : serviceJourneys) {
+            DatedServiceJourney datedServiceJourney = createDatedServiceJourney(serviceJourney, publicationTimestamp, sourceFileName, existing, newOriginals::add);
+            if (datedServiceJourney != null) {
+                existing.add(datedServiceJourney);
+                created.add(datedServiceJourney);
+            }
+        }
+
+        if (!newOriginals.isEmpty()) {
+            TransactionCallbacks.afterCommit(() -> newOriginals.forEach(kafkaNotifier::publishToKafka));
+        }
+
+        logger.info("Resolved {} departures against existing data in {} ms ({} lookups skipped), created {} in {} ms",
+                serviceJourneys.size(), (t2 - t1), skippedLookups, created.size(), (System.currentTimeMillis() - t2));
+        return created;
+    }
+
+    private DatedServiceJourney createDatedServiceJourney(DatedServiceJourney serviceJourney, String publicationTimestamp, String sourceFileName,
+                                                          DatedServiceJourneyLookup lookup, Consumer<DatedServiceJourney> newOriginalPublisher) {
 
         long t1 = System.currentTimeMillis();
 
         // TODO: Handle versions
 
-        DatedServiceJourney alreadyProcessed = storageService.findByServiceJourneyIdAndDate(serviceJourney.getServiceJourneyId(), serviceJourney.getDepartureDate());
+        DatedServiceJourney alreadyProcessed = lookup.findByServiceJourneyIdAndDate(serviceJourney.getServiceJourneyId(), serviceJourney.getDepartureDate());
         long t2 = System.currentTimeMillis();
 
         if (alreadyProcessed != null) {
@@ -85,13 +157,13 @@ public class DatedServiceJourneyService {
         }
 
         // Check to see if departure with same privateCode already exists...
-        DatedServiceJourney datedServiceJourney = findServiceJourneyByPrivateCodeDepartureDate(serviceJourney.getPrivateCode(), serviceJourney.getDepartureDate());
+        DatedServiceJourney datedServiceJourney = findServiceJourneyByPrivateCodeDepartureDate(lookup, serviceJourney.getPrivateCode(), serviceJourney.getDepartureDate());
         long t3 = System.currentTimeMillis();
 
         if (((t2-t1) > 10) && (t3-t2 > 10)) {
             logger.info("Check existing: serviceJourneyId: {} ms, privateCode: {} ms", (t2 - t1), (t3 - t2));
         }
-        long creationNumber = nextId++;
+        long creationNumber = creationNumberAllocator.next();
 
         boolean createdNewOriginalDatedServiceJourney = false;
         boolean datedServiceJourneyIdIsProvided = false;
@@ -110,7 +182,7 @@ public class DatedServiceJourneyService {
         if (datedServiceJourneyIdIsProvided && datedServiceJourney == null) {
             // DSJ not found by privateCode/serviceJourney+date
             // Lookup DSJ directly
-            datedServiceJourney = findServiceJourneyByDatedServiceJourney(serviceJourney.getDatedServiceJourneyId());
+            datedServiceJourney = findServiceJourneyByDatedServiceJourney(lookup, serviceJourney.getDatedServiceJourneyId());
             if (datedServiceJourney != null) {
                 // DSJ is found - check if it already exists for another date
                 if (! datedServiceJourney.getDepartureDate().equals(serviceJourney.getDepartureDate())) {
@@ -126,7 +198,7 @@ public class DatedServiceJourneyService {
             originalDatedServiceJourney = datedServiceJourney.getOriginalDatedServiceJourneyId();
 
             if (datedServiceJourneyIdIsProvided &&
-                findServiceJourneyByDatedServiceJourney(serviceJourney.getDatedServiceJourneyId()) != null) {
+                findServiceJourneyByDatedServiceJourney(lookup, serviceJourney.getDatedServiceJourneyId()) != null) {
 
                 /*
                  * If the DSJ is provided, and has already been imported, we need to use the generated DSJ
@@ -151,18 +223,22 @@ public class DatedServiceJourneyService {
         storageDatedServiceJourney.setDatedServiceJourneyId(serviceJourney.getDatedServiceJourneyId());
         storageDatedServiceJourney.setCreationNumber(creationNumber);
         storageDatedServiceJourney.setOriginalDatedServiceJourneyId(originalDatedServiceJourney);
-        storageDatedServiceJourney.setPublicationTimestamp(publicationTimestamp.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        storageDatedServiceJourney.setPublicationTimestamp(publicationTimestamp);
         storageDatedServiceJourney.setSourceFileName(sourceFileName);
 
         if (createdNewOriginalDatedServiceJourney) {
-            kafkaNotifier.publishToKafka(storageDatedServiceJourney);
+            newOriginalPublisher.accept(storageDatedServiceJourney);
         }
         metricsService.markNewDSJ(createdNewOriginalDatedServiceJourney);
         return storageDatedServiceJourney;
     }
 
     public DatedServiceJourney findServiceJourneyByPrivateCodeDepartureDate(String privateCode, String departureDate) {
-        DatedServiceJourney byPrivateCodeDepartureDate = storageService.findByPrivateCodeDepartureDate(privateCode, departureDate);
+        return findServiceJourneyByPrivateCodeDepartureDate(storageService, privateCode, departureDate);
+    }
+
+    private DatedServiceJourney findServiceJourneyByPrivateCodeDepartureDate(DatedServiceJourneyLookup lookup, String privateCode, String departureDate) {
+        DatedServiceJourney byPrivateCodeDepartureDate = lookup.findByPrivateCodeDepartureDate(privateCode, departureDate);
         String codespace = null;
         if (byPrivateCodeDepartureDate != null) {
             codespace = byPrivateCodeDepartureDate.getServiceJourneyId().substring(0, 3);
@@ -173,8 +249,12 @@ public class DatedServiceJourneyService {
     }
 
     public DatedServiceJourney findServiceJourneyByDatedServiceJourney(String datedServiceJourneyId) {
+        return findServiceJourneyByDatedServiceJourney(storageService, datedServiceJourneyId);
+    }
+
+    private DatedServiceJourney findServiceJourneyByDatedServiceJourney(DatedServiceJourneyLookup lookup, String datedServiceJourneyId) {
 
-        DatedServiceJourney datedServiceJourney = storageService.findByDatedServiceJourneyId(datedServiceJourneyId);
+        DatedServiceJourney datedServiceJourney = lookup.findByDatedServiceJourneyId(datedServiceJourneyId);
         String codespace = null;
         if (datedServiceJourney != null) {
             codespace = datedServiceJourney.getServiceJourneyId().substring(0, 3);
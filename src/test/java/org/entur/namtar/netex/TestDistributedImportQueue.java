@@ -0,0 +1,216 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+
+package org.entur.namtar.netex;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+public class TestDistributedImportQueue {
+
+    private HazelcastInstance hazelcast;
+
+    @Before
+    public void init() {
+        Config config = new Config();
+        config.setClusterName("namtar-test-" + System.nanoTime());
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        config.getNetworkConfig().getJoin().getAutoDetectionConfig().setEnabled(false);
+        hazelcast = Hazelcast.newHazelcastInstance(config);
+    }
+
+    @After
+    public void shutdown() {
+        hazelcast.shutdown();
+    }
+
+    @Test
+    public void testEachBlobIsImportedOnceInOrderPerCodespace() throws InterruptedException {
+        List<String> imported = Collections.synchronizedList(new ArrayList<>());
+
+        // Two queues sharing the same cluster, as on two pods
+        DistributedImportQueue first = new DistributedImportQueue(() -> hazelcast, name -> imported.add(name), 2, 60000, 3, 60000);
+        DistributedImportQueue second = new DistributedImportQueue(() -> hazelcast, name -> imported.add(name), 2, 60000, 3, 60000);
+
+        first.publish("netex/rb_rut-aggregated-netex.zip.2", 2);
+        first.publish("netex/rb_atb-aggregated-netex.zip.1", 1);
+        first.publish("netex/rb_rut-aggregated-netex.zip.1", 1);
+        first.publish("netex/rb_rut-aggregated-netex.zip.3", 3);
+
+        // Already queued
+        assertFalse(first.publish("netex/rb_rut-aggregated-netex.zip.1", 1));
+
+        first.claimAndImport();
+        second.claimAndImport();
+
+        long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!hazelcast.getMap(DistributedImportQueue.IMPORT_TASK_MAP_NAME).isEmpty() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+        first.shutdown();
+        second.shutdown();
+
+        assertTrue(hazelcast.getMap(DistributedImportQueue.IMPORT_TASK_MAP_NAME).isEmpty());
+        assertEquals(4, imported.size());
+
+        List<String> rut = new ArrayList<>();
+        for (String name : imported) {
+            if (name.contains("rb_rut")) {
+                rut.add(name);
+            }
+        }
+        assertEquals(List.of("netex/rb_rut-aggregated-netex.zip.1", "netex/rb_rut-aggregated-netex.zip.2", "netex/rb_rut-aggregated-netex.zip.3"), rut);
+    }
+
+    @Test
+    public void testClaimIsKeptDuringLongImports() throws InterruptedException {
+        List<String> imported = Collections.synchronizedList(new ArrayList<>());
+        DistributedImportQueue.BlobImporter slowImporter = name -> {
+            try {
+                // Several times the lease
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return imported.add(name);
+        };
+        DistributedImportQueue first = new DistributedImportQueue(() -> hazelcast, slowImporter, 1, 300, 3, 60000);
+        DistributedImportQueue second = new DistributedImportQueue(() -> hazelcast, slowImporter, 1, 300, 3, 60000);
+
+        first.publish("netex/rb_rut-aggregated-netex.zip.1", 1);
+        first.publish("netex/rb_rut-aggregated-netex.zip.2", 2);
+
+        first.claimAndImport();
+        long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!hazelcast.getMap(DistributedImportQueue.IMPORT_TASK_MAP_NAME).isEmpty() && System.currentTimeMillis() < timeout) {
+            second.claimAndImport();
+            Thread.sleep(100);
+        }
+        first.shutdown();
+        second.shutdown();
+
+        assertEquals(List.of("netex/rb_rut-aggregated-netex.zip.1", "netex/rb_rut-aggregated-netex.zip.2"), imported);
+    }
+
+    @Test
+    public void testFailingBlobIsMovedAsideAfterMaxAttempts() throws InterruptedException {
+        List<String> imported = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger attempts = new AtomicInteger();
+        DistributedImportQueue queue = new DistributedImportQueue(() -> hazelcast, name -> {
+            if (name.endsWith(".1")) {
+                attempts.incrementAndGet();
+                throw new IOException("Corrupt file");
+            }
+            return imported.add(name);
+        }, 1, 60000, 2, 60000);
+
+        queue.publish("netex/rb_rut-aggregated-netex.zip.1", 1);
+        queue.publish("netex/rb_rut-aggregated-netex.zip.2", 2);
+
+        long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!hazelcast.getMap(DistributedImportQueue.IMPORT_TASK_MAP_NAME).isEmpty() && System.currentTimeMillis() < timeout) {
+            queue.claimAndImport();
+            Thread.sleep(50);
+        }
+        queue.shutdown();
+
+        assertEquals(2, attempts.get());
+        assertEquals(List.of("netex/rb_rut-aggregated-netex.zip.2"), imported);
+        assertTrue(hazelcast.getMap(DistributedImportQueue.FAILED_IMPORT_TASK_MAP_NAME).containsKey("netex/rb_rut-aggregated-netex.zip.1"));
+
+        // Not published again by the next listing
+        assertFalse(queue.publish("netex/rb_rut-aggregated-netex.zip.1", 1));
+    }
+
+    @Test
+    public void testFailedBlobIsPublishedAgainWhenReplaced() throws InterruptedException {
+        List<String> imported = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger outages = new AtomicInteger(1);
+        DistributedImportQueue queue = new DistributedImportQueue(() -> hazelcast, name -> {
+            if (outages.getAndDecrement() > 0) {
+                throw new IOException("Service unavailable");
+            }
+            return imported.add(name);
+        }, 1, 60000, 1, 60000);
+
+        queue.publish("netex/rb_rut-aggregated-netex.zip", 1);
+        awaitImports(queue);
+        assertTrue(hazelcast.getMap(DistributedImportQueue.FAILED_IMPORT_TASK_MAP_NAME).containsKey("netex/rb_rut-aggregated-netex.zip"));
+        assertFalse(queue.publish("netex/rb_rut-aggregated-netex.zip", 1));
+
+        // Uploaded again under the same name
+        assertTrue(queue.publish("netex/rb_rut-aggregated-netex.zip", 2));
+        assertFalse(hazelcast.getMap(DistributedImportQueue.FAILED_IMPORT_TASK_MAP_NAME).containsKey("netex/rb_rut-aggregated-netex.zip"));
+        awaitImports(queue);
+        queue.shutdown();
+
+        assertEquals(List.of("netex/rb_rut-aggregated-netex.zip"), imported);
+    }
+
+    @Test
+    public void testFailedBlobIsPublishedAgainAfterRetryTime() throws InterruptedException {
+        DistributedImportQueue queue = new DistributedImportQueue(() -> hazelcast, name -> {
+            throw new IOException("Service unavailable");
+        }, 1, 60000, 1, 1000);
+
+        queue.publish("netex/rb_rut-aggregated-netex.zip", 1);
+        awaitImports(queue);
+        queue.shutdown();
+        assertFalse(queue.publish("netex/rb_rut-aggregated-netex.zip", 1));
+
+        long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (hazelcast.getMap(DistributedImportQueue.FAILED_IMPORT_TASK_MAP_NAME).containsKey("netex/rb_rut-aggregated-netex.zip") && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+        assertTrue(queue.publish("netex/rb_rut-aggregated-netex.zip", 1));
+    }
+
+    @Test
+    public void testRequestedBlobsAreDrainedOnceInOrder() {
+        // Received on one pod, drained by the leader on another
+        ImportRequestQueue receiver = new ImportRequestQueue(() -> hazelcast);
+        ImportRequestQueue leader = new ImportRequestQueue(() -> hazelcast);
+
+        assertEquals(1, receiver.request(List.of("netex/rb_rut-aggregated-netex.zip", "netex/")));
+        assertEquals(2, receiver.request(List.of("netex/rb_atb-aggregated-netex.zip", "netex/rb_rut-aggregated-netex.zip")));
+
+        assertEquals(List.of("netex/rb_rut-aggregated-netex.zip", "netex/rb_atb-aggregated-netex.zip"), leader.drain());
+        assertTrue(leader.drain().isEmpty());
+    }
+
+    private void awaitImports(DistributedImportQueue queue) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!hazelcast.getMap(DistributedImportQueue.IMPORT_TASK_MAP_NAME).isEmpty() && System.currentTimeMillis() < timeout) {
+            queue.claimAndImport();
+            Thread.sleep(50);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import org.entur.namtar.repository.blobstore.BlobStoreRepository;
+import org.entur.namtar.repository.blobstore.InMemoryBlobStoreRepository;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+public class TestDownloadCache {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final Map<String, byte[]> contents = new HashMap<>();
+    private final Map<String, BlobInfo> blobInfos = new HashMap<>();
+
+    @Test
+    public void testDownloadsAreVerifiedAndReused() throws IOException {
+        DownloadCache cache = new DownloadCache(new MapBlobStoreRepository(), temporaryFolder.getRoot().toPath(), 1024);
+
+        addBlob("netex/rb_rut-1.zip", "rut", true);
+        addBlob("netex/rb_rut-2.zip", "rut", true);
+
+        Path first = cache.download("netex/rb_rut-1.zip");
+        assertEquals("rut", Files.readString(first));
+        cache.release(first);
+
+        // Same content under another name
+        Path second = cache.download("netex/rb_rut-2.zip");
+        assertEquals(first, second);
+        cache.release(second);
+        assertEquals(1, cache.size());
+
+        // Truncated download
+        addBlob("netex/rb_atb-1.zip", "atb", true);
+        contents.put("netex/rb_atb-1.zip", "at".getBytes(StandardCharsets.UTF_8));
+        try {
+            cache.download("netex/rb_atb-1.zip");
+            fail("Truncated download should be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(1, cache.size());
+        assertEquals(1, temporaryFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedUnpinnedFilesAreEvicted() throws IOException {
+        DownloadCache cache = new DownloadCache(new MapBlobStoreRepository(), temporaryFolder.getRoot().toPath(), 10);
+
+        addBlob("a.zip", "aaaa", true);
+        addBlob("b.zip", "bbbb", true);
+        addBlob("c.zip", "cccc", false);
+
+        Path a = cache.download("a.zip");
+        Path b = cache.download("b.zip");
+        cache.release(b);
+        cache.release(a);
+
+        // b is least recently used, as a was released last
+        Path c = cache.download("c.zip");
+        assertFalse(Files.exists(b));
+        assertTrue(Files.exists(a));
+        assertEquals(8, cache.getTotalBytes());
+
+        // Pinned files are kept over budget
+        addBlob("d.zip", "dddd", true);
+        Path b2 = cache.download("b.zip");
+        Path d = cache.download("d.zip");
+        assertFalse(Files.exists(a));
+        assertEquals(12, cache.getTotalBytes());
+
+        cache.release(c);
+        assertFalse(Files.exists(c));
+        assertTrue(Files.exists(b2));
+        assertTrue(Files.exists(d));
+        assertEquals(8, cache.getTotalBytes());
+    }
+
+    @Test
+    public void testLargeBlobsAreDownloadedInRanges() throws IOException {
+        byte[] content = new byte[1000];
+        new Random(1).nextBytes(content);
+
+        InMemoryBlobStoreRepository repository = new InMemoryBlobStoreRepository();
+        repository.putBlob("netex/rb_rut-1.zip", content);
+
+        ExecutorService rangeExecutor = Executors.newFixedThreadPool(4);
+        try {
+            // Ten ranges, the last one shorter
+            DownloadCache cache = new DownloadCache(repository, temporaryFolder.getRoot().toPath(), 10000, rangeExecutor, 110);
+
+            Path file = cache.download("netex/rb_rut-1.zip");
+            assertTrue(Arrays.equals(content, Files.readAllBytes(file)));
+        } finally {
+            rangeExecutor.shutdownNow();
+        }
+    }
+
+    private void addBlob(String name, String content, boolean withChecksum) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        contents.put(name, bytes);
+
+        BlobInfo.Builder builder = BlobInfo.newBuilder("test", name).setSize((long) bytes.length);
+        if (withChecksum) {
+            CRC32C crc32c = new CRC32C();
+            crc32c.update(bytes);
+            builder.setCrc32c(DownloadCache.encodeCrc32c(crc32c.getValue()));
+        }
+        blobInfos.put(name, builder.build());
+    }
+
+    private class MapBlobStoreRepository implements BlobStoreRepository {
+
+        @Override
+        public Iterator<BlobInfo> listBlobs(String prefix) {
+            return blobInfos.values().iterator();
+        }
+
+        @Override
+        public InputStream getBlob(String objectName) {
+            byte[] content = contents.get(objectName);
+            return content != null ? new ByteArrayInputStream(content) : null;
+        }
+
+        @Override
+        public InputStream getBlobRange(String objectName, long offset, long length) {
+            byte[] content = contents.get(objectName);
+            return content != null ? new ByteArrayInputStream(content, (int) offset, (int) Math.min(length, content.length - offset)) : null;
+        }
+
+        @Override
+        public BlobInfo getBlobInfo(String objectName) {
+            return blobInfos.get(objectName);
+        }
+
+        @Override
+        public void setStorage(Storage storage) {
+        }
+
+        @Override
+        public void setContainerName(String containerName) {
+        }
+    }
+}
@@ -17,6 +17,7 @@ package org.entur.namtar.netex;
 
 import org.entur.namtar.App;
 import org.entur.namtar.model.DatedServiceJourney;
+import org.entur.namtar.services.CreationNumberAllocator;
 import org.entur.namtar.services.DatedServiceJourneyService;
 import org.junit.Before;
 import org.junit.Test;
@@ -26,12 +27,21 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertNotNull;
 import static junit.framework.TestCase.assertNotSame;
+import static junit.framework.TestCase.assertNull;
 import static junit.framework.TestCase.assertTrue;
 
 
@@ -42,6 +52,9 @@ public class TestIdMappingService {
     @Autowired
     DatedServiceJourneyService service;
 
+    @Autowired
+    CreationNumberAllocator creationNumberAllocator;
+
     private LocalDateTime publicationTimestamp;
     private final String sourceFileName = "tmp.zip";
 
@@ -417,4 +430,153 @@ public class TestIdMappingService {
 
     }
 
+
+    @Test
+    public void testBulkCreateMatchesExistingAndNewServiceJourneys() {
+
+        String privateCode = "814";
+        String lineRef = "NSB:Line:L1";
+        String departureDate = "2018-01-12";
+        String departureTime = "12:00";
+        String bulkPublicationTimestamp = publicationTimestamp.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+
+        String serviceJourneyId = "NSB:ServiceJourney:" + getRandomId() + "-"+ service.getStorageService().findNextCreationNumber();
+        String serviceJourneyId_2 = "NSB:ServiceJourney:" + getRandomId() + "-"+ service.getStorageService().findNextCreationNumber();
+        String serviceJourneyId_3 = "NSB:ServiceJourney:" + getRandomId() + "-"+ service.getStorageService().findNextCreationNumber();
+
+        // Already imported
+        DatedServiceJourney serviceJourney = new DatedServiceJourney(serviceJourneyId, 0, privateCode, lineRef, departureDate, departureTime);
+        DatedServiceJourney existing = service.createDatedServiceJourney(serviceJourney, publicationTimestamp, sourceFileName);
+        service.getStorageService().addDatedServiceJourney(existing);
+
+        List<DatedServiceJourney> created = service.createDatedServiceJourneys(List.of(
+                new DatedServiceJourney(serviceJourneyId, 0, privateCode, lineRef, departureDate, departureTime),
+                new DatedServiceJourney(serviceJourneyId_2, 0, privateCode, lineRef, departureDate, departureTime),
+                new DatedServiceJourney(serviceJourneyId_3, 0, privateCode, lineRef, "2018-01-13", departureTime),
+                new DatedServiceJourney(serviceJourneyId_3, 0, privateCode, lineRef, "2018-01-13", departureTime)
+        ), bulkPublicationTimestamp, sourceFileName);
+
+        assertEquals("Existing and duplicate departures should be ignored", 2, created.size());
+
+        DatedServiceJourney matches_2 = created.get(0);
+        assertEquals(serviceJourneyId_2, matches_2.getServiceJourneyId());
+        assertEquals("Should have gotten the same Original id.", existing.getOriginalDatedServiceJourneyId(), matches_2.getOriginalDatedServiceJourneyId());
+
+        DatedServiceJourney matches_3 = created.get(1);
+        assertEquals(serviceJourneyId_3, matches_3.getServiceJourneyId());
+        assertEquals("New departure should be its own original", matches_3.getDatedServiceJourneyId(), matches_3.getOriginalDatedServiceJourneyId());
+
+        service.getStorageService().addDatedServiceJourneys(created);
+
+        DatedServiceJourney stored_3 = service.getStorageService().findByServiceJourneyIdAndDate(serviceJourneyId_3, "2018-01-13");
+        assertNotNull(stored_3);
+        assertEquals(matches_3.getDatedServiceJourneyId(), stored_3.getDatedServiceJourneyId());
+        assertEquals(matches_3.getCreationNumber(), stored_3.getCreationNumber());
+    }
+
+    @Test
+    public void testBulkCreateFindsExistingServiceJourneysAcrossQueryChunks() {
+        String bulkPublicationTimestamp = publicationTimestamp.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        String prefix = "NSB:ServiceJourney:" + getRandomId() + "-";
+
+        // More ids than fit in a single IN-list
+        List<DatedServiceJourney> departures = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            departures.add(new DatedServiceJourney(prefix + i, 0, "C" + prefix + i, "NSB:Line:L1", "2018-02-01", "12:00"));
+        }
+        List<DatedServiceJourney> created = service.createDatedServiceJourneys(departures, bulkPublicationTimestamp, sourceFileName);
+        assertEquals(2500, created.size());
+        created.forEach(service.getStorageService()::addDatedServiceJourney);
+
+        List<DatedServiceJourney> republished = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            republished.add(new DatedServiceJourney(prefix + i, 0, "C" + prefix + i, "NSB:Line:L1", "2018-02-01", "12:00"));
+        }
+        assertEquals("All departures should be found, also in the last chunk", 0,
+                service.createDatedServiceJourneys(republished, bulkPublicationTimestamp, sourceFileName).size());
+    }
+
+    @Test
+    public void testBulkCreateMatchesPrivateCodesAcrossQueryChunks() {
+        String bulkPublicationTimestamp = publicationTimestamp.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        String prefix = getRandomId() + "-";
+
+        List<DatedServiceJourney> departures = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            departures.add(new DatedServiceJourney("NSB:ServiceJourney:A" + prefix + i, 0, prefix + i, "NSB:Line:L1", "2018-02-02", "12:00"));
+        }
+        List<DatedServiceJourney> created = service.createDatedServiceJourneys(departures, bulkPublicationTimestamp, sourceFileName);
+        created.forEach(service.getStorageService()::addDatedServiceJourney);
+
+        // New serviceJourneyIds, with the same privateCodes on the same date
+        List<DatedServiceJourney> replacements = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            replacements.add(new DatedServiceJourney("NSB:ServiceJourney:B" + prefix + i, 0, prefix + i, "NSB:Line:L1", "2018-02-02", "12:00"));
+        }
+        List<DatedServiceJourney> replaced = service.createDatedServiceJourneys(replacements, bulkPublicationTimestamp, sourceFileName);
+        assertEquals(2500, replaced.size());
+
+        for (int i = 0; i < 2500; i++) {
+            assertEquals("Should have gotten the same Original id.",
+                    created.get(i).getOriginalDatedServiceJourneyId(), replaced.get(i).getOriginalDatedServiceJourneyId());
+        }
+    }
+
+    @Test
+    public void testCreationNumbersAreUniqueAcrossThreads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<Long>>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(() -> {
+                    List<Long> creationNumbers = new ArrayList<>();
+                    for (int j = 0; j < 2500; j++) {
+                        creationNumbers.add(creationNumberAllocator.next());
+                    }
+                    return creationNumbers;
+                }));
+            }
+            Set<Long> unique = new HashSet<>();
+            for (Future<List<Long>> result : results) {
+                unique.addAll(result.get());
+            }
+            assertEquals(10000, unique.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testProcessedFileStatus() {
+        String filename = "rb_test-" + getRandomId() + ".zip";
+
+        assertFalse(service.getStorageService().isAlreadyProcessed(filename));
+
+        service.getStorageService().setFileStatus(filename, false);
+        assertFalse(service.getStorageService().isAlreadyProcessed(filename));
+
+        service.getStorageService().setFileStatus(filename, true);
+        assertTrue(service.getStorageService().isAlreadyProcessed(filename));
+    }
+
+    @Test
+    public void testFileCheckpointIsKeptUntilFileIsProcessed() {
+        String filename = "rb_test-" + getRandomId() + ".zip";
+
+        assertNull(service.getStorageService().getFileCheckpoint(filename));
+
+        // Interrupted after the first line-file was committed
+        service.getStorageService().setFileCheckpoint(filename, "RUT_RUT-Line-1.xml");
+        assertEquals("RUT_RUT-Line-1.xml", service.getStorageService().getFileCheckpoint(filename));
+        assertFalse(service.getStorageService().isAlreadyProcessed(filename));
+
+        // Resumed and committed further
+        service.getStorageService().setFileCheckpoint(filename, "RUT_RUT-Line-2.xml");
+        assertEquals("RUT_RUT-Line-2.xml", service.getStorageService().getFileCheckpoint(filename));
+
+        service.getStorageService().setFileStatus(filename, true);
+        assertNull(service.getStorageService().getFileCheckpoint(filename));
+        assertTrue(service.getStorageService().isAlreadyProcessed(filename));
+    }
+
 }
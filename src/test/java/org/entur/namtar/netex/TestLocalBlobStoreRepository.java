@@ -0,0 +1,72 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import com.google.cloud.storage.BlobInfo;
+import org.entur.namtar.repository.blobstore.LocalBlobStoreRepository;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.fail;
+
+public class TestLocalBlobStoreRepository {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testListsAndReadsCompleteFiles() throws IOException {
+        File folder = temporaryFolder.newFolder("outbound", "dated");
+        Files.writeString(new File(folder, "rb_rut-aggregated-netex.zip").toPath(), "netex");
+        Files.writeString(new File(folder, "rb_atb-aggregated-netex.zip.part").toPath(), "incomplete");
+
+        LocalBlobStoreRepository repository = new LocalBlobStoreRepository(temporaryFolder.getRoot().getPath());
+
+        List<BlobInfo> blobs = new ArrayList<>();
+        repository.listBlobs("outbound/dated").forEachRemaining(blobs::add);
+
+        assertEquals(1, blobs.size());
+        assertEquals("outbound/dated/rb_rut-aggregated-netex.zip", blobs.get(0).getName());
+        assertEquals(5L, (long) blobs.get(0).getSize());
+
+        try (InputStream blob = repository.getBlob("outbound/dated/rb_rut-aggregated-netex.zip")) {
+            assertEquals("netex", new String(blob.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        try (InputStream range = repository.getBlobRange("outbound/dated/rb_rut-aggregated-netex.zip", 1, 3)) {
+            assertEquals("ete", new String(range.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertNull(repository.getBlob("outbound/dated/missing.zip"));
+        assertNull(repository.getBlobInfo("../outside.zip"));
+
+        try {
+            repository.getBlob("../outside.zip");
+            fail("Names outside the directory should be rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.netex;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class TestNetexProcessor {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testAllParserModesExtractSameData() throws IOException {
+        File zip = createNetexZip();
+
+        NetexProcessor jaxb = new NetexProcessor(zip, new NetexProcessorOptions().parserMode(NetexParserMode.JAXB));
+        jaxb.loadFiles();
+
+        NetexProcessor stax = new NetexProcessor(zip, new NetexProcessorOptions().parserMode(NetexParserMode.STAX));
+        stax.loadFiles();
+
+        NetexProcessor jaxbFiltered = new NetexProcessor(zip, new NetexProcessorOptions().parserMode(NetexParserMode.JAXB_FILTERED));
+        jaxbFiltered.loadFiles();
+
+        for (NetexProcessor processor : new NetexProcessor[]{jaxb, stax, jaxbFiltered}) {
+            assertEquals(LocalDateTime.parse("2024-01-01T12:00:00"), processor.publicationTimestamp);
+
+            // ServiceJourney:2 has fewer passing times than stops in its JourneyPattern
+            assertEquals(1, processor.serviceJourneys.size());
+
+            ServiceJourneyRecord serviceJourney = processor.serviceJourneys.get(0);
+            assertEquals("RUT:ServiceJourney:1", serviceJourney.getId());
+            assertEquals("3", serviceJourney.getVersion());
+            assertEquals("101", serviceJourney.getPrivateCode());
+            assertEquals("08:15", serviceJourney.getDepartureTime().format(NetexProcessor.timeFormatter));
+            assertEquals(2, serviceJourney.getDayTypeRefs().size());
+            assertEquals("RUT:JourneyPattern:1", serviceJourney.getJourneyPatternRef());
+
+            assertEquals("RUT:Route:1", processor.journeyPatternsById.get("RUT:JourneyPattern:1").getRouteRef());
+            assertEquals(2, processor.journeyPatternsById.get("RUT:JourneyPattern:1").getStopCount());
+            assertEquals("RUT:Line:1", processor.routesById.get("RUT:Route:1").getLineRef());
+
+            assertEquals(3, processor.dayTypesById.size());
+            assertEquals(List.of(LocalDate.parse("2024-01-02")), getDates(processor, "RUT:DayType:1"));
+            assertEquals(List.of(LocalDate.parse("2024-01-03")), getDates(processor, "RUT:DayType:2"));
+
+            // Mondays and Wednesdays in the OperatingPeriod, except the excluded date
+            assertEquals(List.of(LocalDate.parse("2024-01-01"), LocalDate.parse("2024-01-08"), LocalDate.parse("2024-01-10")),
+                    getDates(processor, "RUT:DayType:3"));
+        }
+    }
+
+    @Test
+    public void testDeparturesOutsideImportWindowAreDropped() throws IOException {
+        File zip = createNetexZip();
+
+        NetexProcessor processor = new NetexProcessor(zip, new NetexProcessorOptions().parserMode(NetexParserMode.STAX));
+        processor.loadFiles();
+        processor.close();
+
+        NavigableSet<LocalDateTime> departureDates = new TreeSet<>();
+        for (String dayTypeRef : processor.serviceJourneys.get(0).getDayTypeRefs()) {
+            getDates(processor, dayTypeRef).forEach(date -> departureDates.add(date.atStartOfDay()));
+        }
+        assertEquals(2, departureDates.size());
+
+        // Only the departure on 2024-01-03 is inside the window
+        ImportWindow importWindow = new ImportWindow(LocalDate.parse("2024-01-03"), 0, 0);
+        NavigableSet<LocalDateTime> inWindow = new TreeSet<>(departureDates);
+        assertEquals(1, importWindow.dropBefore(inWindow));
+        assertEquals(0, importWindow.dropAfter(inWindow));
+        assertEquals(Set.of(LocalDateTime.parse("2024-01-03T00:00")), inWindow);
+
+        // Only the departure on 2024-01-02 is inside the window
+        importWindow = new ImportWindow(LocalDate.parse("2024-01-02"), 0, 0);
+        inWindow = new TreeSet<>(departureDates);
+        assertEquals(0, importWindow.dropBefore(inWindow));
+        assertEquals(1, importWindow.dropAfter(inWindow));
+        assertEquals(Set.of(LocalDateTime.parse("2024-01-02T00:00")), inWindow);
+
+        // Negative values disable the limits
+        importWindow = new ImportWindow(LocalDate.parse("2030-01-01"), -1, -1);
+        inWindow = new TreeSet<>(departureDates);
+        assertEquals(0, importWindow.dropBefore(inWindow));
+        assertEquals(0, importWindow.dropAfter(inWindow));
+        assertEquals(departureDates, inWindow);
+    }
+
+    @Test
+    public void testConcurrentParsingUsesSharedData() throws IOException {
+        File zip = createNetexZip();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            NetexProcessor processor = new NetexProcessor(zip, new NetexProcessorOptions().parserMode(NetexParserMode.STAX).parseExecutor(executor));
+            processor.loadFiles();
+
+            assertEquals(1, processor.serviceJourneys.size());
+            assertEquals(3, processor.dayTypesById.size());
+            assertEquals("RUT:Line:1", processor.routesById.get("RUT:Route:1").getLineRef());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testZipEntriesAreListedInOrder() throws IOException {
+        File zip = createNetexZip();
+
+        try (ZipSource zipSource = ZipSource.open(zip)) {
+            List<ZipEntry> entries = zipSource.getEntries();
+            assertEquals(List.of("_RUT_shared_data.xml", "RUT_RUT-Line-1.xml"),
+                    entries.stream().map(ZipEntry::getName).collect(Collectors.toList()));
+            assertTrue(entries == zipSource.getEntries());
+
+            try (InputStream expected = getClass().getResourceAsStream("/netex/RUT_RUT-Line-1.xml");
+                 InputStream actual = zipSource.getInputStream(entries.get(1))) {
+                assertTrue(Arrays.equals(expected.readAllBytes(), actual.readAllBytes()));
+            }
+        }
+    }
+
+    @Test
+    public void testUnchangedSharedDataIsReused() throws IOException {
+        File zip = createNetexZip();
+        SharedDataCache sharedDataCache = new SharedDataCache(10);
+
+        NetexProcessor first = new NetexProcessor(zip, new NetexProcessorOptions().parserMode(NetexParserMode.STAX).sharedDataCache(sharedDataCache));
+        first.loadFiles();
+        first.close();
+
+        assertEquals(1, sharedDataCache.size());
+
+        NetexProcessor second = new NetexProcessor(zip, new NetexProcessorOptions().parserMode(NetexParserMode.STAX).sharedDataCache(sharedDataCache));
+        second.loadFiles();
+        second.close();
+
+        assertEquals(1, sharedDataCache.size());
+        assertEquals(3, second.dayTypesById.size());
+        assertEquals(List.of(LocalDate.parse("2024-01-02")), getDates(second, "RUT:DayType:1"));
+        assertEquals(1, second.serviceJourneys.size());
+    }
+
+    @Test
+    public void testUnchangedLineFilesAreSkipped() throws IOException {
+        File zip = createNetexZip();
+        ImportedEntryRegistry importedEntryRegistry = new ImportedEntryRegistry();
+
+        NetexProcessorOptions options = new NetexProcessorOptions()
+                .parserMode(NetexParserMode.STAX)
+                .importedEntryRegistry(importedEntryRegistry);
+
+        NetexProcessor first = new NetexProcessor(zip, options);
+        first.loadFiles();
+        first.close();
+
+        assertEquals("RUT", first.codespace);
+        assertEquals(1, first.serviceJourneys.size());
+        assertEquals(0, first.unchangedLineFileCount);
+
+        importedEntryRegistry.register(first.codespace, first.sharedDataFingerprint, first.lineFileFingerprints);
+
+        NetexProcessor second = new NetexProcessor(zip, options);
+        second.loadFiles();
+        second.close();
+
+        assertEquals(0, second.serviceJourneys.size());
+        assertEquals(1, second.unchangedLineFileCount);
+    }
+
+    @Test
+    public void testUnchangedLineFilesAreParsedWhenImportWindowHasMoved() throws IOException {
+        File zip = createNetexZip();
+        ImportedEntryRegistry importedEntryRegistry = new ImportedEntryRegistry();
+
+        NetexProcessor first = new NetexProcessor(zip, new NetexProcessorOptions()
+                .parserMode(NetexParserMode.STAX)
+                .importedEntryRegistry(importedEntryRegistry)
+                .importWindow("2017-12-30T00:00..2019-02-05T00:00"));
+        first.loadFiles();
+        first.close();
+
+        importedEntryRegistry.register(first.codespace, first.sharedDataFingerprint, first.lineFileFingerprints);
+
+        // Same file uploaded again the next day - departures dropped yesterday may now be inside the window
+        NetexProcessor nextDay = new NetexProcessor(zip, new NetexProcessorOptions()
+                .parserMode(NetexParserMode.STAX)
+                .importedEntryRegistry(importedEntryRegistry)
+                .importWindow("2017-12-31T00:00..2019-02-06T00:00"));
+        nextDay.loadFiles();
+        nextDay.close();
+
+        assertEquals(1, nextDay.serviceJourneys.size());
+        assertEquals(0, nextDay.unchangedLineFileCount);
+
+        NetexProcessor sameDay = new NetexProcessor(zip, new NetexProcessorOptions()
+                .parserMode(NetexParserMode.STAX)
+                .importedEntryRegistry(importedEntryRegistry)
+                .importWindow("2017-12-30T00:00..2019-02-05T00:00"));
+        sameDay.loadFiles();
+        sameDay.close();
+
+        assertEquals(0, sameDay.serviceJourneys.size());
+        assertEquals(1, sameDay.unchangedLineFileCount);
+    }
+
+    @Test
+    public void testLineFilesUpToCheckpointAreSkipped() throws IOException {
+        File zip = createNetexZip();
+
+        NetexProcessor first = new NetexProcessor(zip, new NetexProcessorOptions().parserMode(NetexParserMode.STAX));
+        first.loadFiles();
+        first.close();
+
+        assertEquals(Map.of("RUT_RUT-Line-1.xml", 1), first.lineFileServiceJourneyEnds);
+
+        NetexProcessor resumed = new NetexProcessor(zip, new NetexProcessorOptions()
+                .parserMode(NetexParserMode.STAX)
+                .resumeAfterEntry("RUT_RUT-Line-1.xml"));
+        resumed.loadFiles();
+        resumed.close();
+
+        assertEquals(0, resumed.serviceJourneys.size());
+        assertEquals(1, resumed.resumedLineFileCount);
+        assertEquals(1, resumed.lineFileFingerprints.size());
+
+        // Unknown checkpoints are ignored
+        NetexProcessor unknown = new NetexProcessor(zip, new NetexProcessorOptions()
+                .parserMode(NetexParserMode.STAX)
+                .resumeAfterEntry("RUT_RUT-Line-2.xml"));
+        unknown.loadFiles();
+        unknown.close();
+
+        assertEquals(1, unknown.serviceJourneys.size());
+    }
+
+    @Test
+    public void testSharedDataIsNotReusedAcrossCodespaces() throws IOException {
+        SharedDataCache sharedDataCache = new SharedDataCache(10);
+
+        NetexProcessor rut = new NetexProcessor(createNetexZip(), new NetexProcessorOptions().parserMode(NetexParserMode.STAX).sharedDataCache(sharedDataCache));
+        rut.loadFiles();
+        rut.close();
+
+        // Byte-identical shared data published by another codespace
+        File atbZip = temporaryFolder.newFile("rb_atb-aggregated-netex.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(atbZip))) {
+            out.putNextEntry(new ZipEntry("_ATB_shared_data.xml"));
+            try (InputStream in = getClass().getResourceAsStream("/netex/_RUT_shared_data.xml")) {
+                in.transferTo(out);
+            }
+            out.closeEntry();
+        }
+        NetexProcessor atb = new NetexProcessor(atbZip, new NetexProcessorOptions().parserMode(NetexParserMode.STAX).sharedDataCache(sharedDataCache));
+        atb.loadFiles();
+        atb.close();
+
+        assertEquals("ATB", atb.codespace);
+        assertEquals(2, sharedDataCache.size());
+    }
+
+    private List<LocalDate> getDates(NetexProcessor processor, String dayTypeRef) {
+        List<LocalDate> dates = new ArrayList<>();
+        processor.getDayTypeDates(dayTypeRef).forEach(dates::add);
+        return dates;
+    }
+
+    private File createNetexZip() throws IOException {
+        File zip = temporaryFolder.newFile("rb_rut-aggregated-netex.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            for (String name : new String[]{"_RUT_shared_data.xml", "RUT_RUT-Line-1.xml"}) {
+                out.putNextEntry(new ZipEntry(name));
+                try (InputStream in = getClass().getResourceAsStream("/netex/" + name)) {
+                    in.transferTo(out);
+                }
+                out.closeEntry();
+            }
+        }
+        return zip;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.services;
+
+import com.google.cloud.storage.BlobInfo;
+import org.entur.namtar.model.ImportWatermark;
+import org.entur.namtar.model.SourceFile;
+import org.entur.namtar.repository.blobstore.BlobStoreRepository;
+import org.entur.namtar.repository.persistence.ImportWatermarkRepository;
+import org.entur.namtar.repository.persistence.StorageRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+
+public class TestBlobStoreService {
+
+    private final List<BlobInfo> blobs = new ArrayList<>();
+    private final Set<String> processed = new HashSet<>();
+    private final Map<String, Integer> failedAttempts = new HashMap<>();
+    private ImportWatermark watermark;
+
+    private BlobStoreService blobStoreService;
+
+    @Before
+    public void init() {
+        blobs.add(blob("rb_rut-1.zip", 1000));
+        blobs.add(blob("rb_rut-2.zip", 2000));
+        blobs.add(blob("rb_rut-3.zip", 3000));
+
+        // No overlap, and no reconciliation listing after the first listing
+        blobStoreService = new BlobStoreService(createBlobStoreRepository(), null, createWatermarkRepository(),
+                new DataStorageService(createStorageRepository(), false), "container", "netex/", 10, 0, 24, 2);
+    }
+
+    @Test
+    public void testWatermarkAdvancesPastProcessedBlobs() {
+        assertEquals(List.of("netex/rb_rut-1.zip", "netex/rb_rut-2.zip", "netex/rb_rut-3.zip"), list());
+
+        processed.add("rb_rut-1.zip");
+        processed.add("rb_rut-2.zip");
+        assertEquals(List.of("netex/rb_rut-3.zip"), list());
+        assertEquals(2000, watermark.getUpdateTime());
+
+        processed.add("rb_rut-3.zip");
+        assertEquals(List.of(), list());
+        assertEquals(3000, watermark.getUpdateTime());
+
+        // Only newer blobs are checked
+        blobs.add(blob("rb_rut-4.zip", 4000));
+        assertEquals(List.of("netex/rb_rut-4.zip"), list());
+    }
+
+    @Test
+    public void testWatermarkIsOnlyHeldBackByFailingBlobForSomeAttempts() {
+        assertEquals(List.of("netex/rb_rut-1.zip", "netex/rb_rut-2.zip", "netex/rb_rut-3.zip"), list());
+
+        // The first file keeps failing
+        failedAttempts.put("rb_rut-1.zip", 1);
+        processed.add("rb_rut-2.zip");
+        processed.add("rb_rut-3.zip");
+        assertEquals(List.of("netex/rb_rut-1.zip"), list());
+        assertNull(watermark);
+
+        failedAttempts.put("rb_rut-1.zip", 2);
+        assertEquals(List.of(), list());
+        assertEquals(3000, watermark.getUpdateTime());
+    }
+
+    @Test
+    public void testWatermarkIsHeldBackByBlobsNotAttemptedWhileLoaderIsBusy() {
+        assertEquals(List.of("netex/rb_rut-1.zip", "netex/rb_rut-2.zip", "netex/rb_rut-3.zip"), list());
+        processed.add("rb_rut-1.zip");
+
+        // Uploaded during a long import, which ignores the following listings
+        blobs.add(blob("rb_rut-4.zip", 4000));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(List.of("netex/rb_rut-2.zip", "netex/rb_rut-3.zip", "netex/rb_rut-4.zip"), list());
+            assertEquals(1000, watermark.getUpdateTime());
+        }
+
+        processed.add("rb_rut-2.zip");
+        processed.add("rb_rut-3.zip");
+        assertEquals(List.of("netex/rb_rut-4.zip"), list());
+        assertEquals(3000, watermark.getUpdateTime());
+    }
+
+    @Test
+    public void testRequestedBlobsAreReturnedWithOlderUnprocessedBlobsOfTheCodespace() {
+        blobs.add(blob("rb_atb-1.zip", 500));
+        blobs.add(blob("rb_rut-4.zip", 4000));
+        processed.add("rb_rut-2.zip");
+
+        List<String> names = new ArrayList<>();
+        blobStoreService.getRequestedBlobs(List.of("netex/rb_rut-3.zip", "netex/rb_rut-missing.zip"))
+                .forEachRemaining(blob -> names.add(blob.getName()));
+
+        // The older unprocessed file is imported first, newer files and other codespaces are left to the listing
+        assertEquals(List.of("netex/rb_rut-1.zip", "netex/rb_rut-3.zip"), names);
+
+        processed.add("rb_rut-1.zip");
+        processed.add("rb_rut-3.zip");
+        assertFalse(blobStoreService.getRequestedBlobs(List.of("netex/rb_rut-3.zip")).hasNext());
+    }
+
+    private List<String> list() {
+        List<String> names = new ArrayList<>();
+        blobStoreService.getAllBlobs().forEachRemaining(blob -> names.add(blob.getName()));
+        return names;
+    }
+
+    private static BlobInfo blob(String filename, long updateTime) {
+        return BlobInfo.newBuilder("container", "netex/" + filename).setUpdateTime(updateTime).build();
+    }
+
+    /*
+     * The proxies below only implement what the listing uses
+     */
+    private BlobStoreRepository createBlobStoreRepository() {
+        return (BlobStoreRepository) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{BlobStoreRepository.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "listBlobs":
+                    return blobs.stream().filter(blob -> blob.getName().startsWith((String) args[0])).iterator();
+                case "getBlobInfo":
+                    return blobs.stream().filter(blob -> blob.getName().equals(args[0])).findFirst().orElse(null);
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private ImportWatermarkRepository createWatermarkRepository() {
+        return (ImportWatermarkRepository) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{ImportWatermarkRepository.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "findById":
+                    return Optional.ofNullable(watermark);
+                case "save":
+                    watermark = (ImportWatermark) args[0];
+                    return watermark;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private StorageRepository createStorageRepository() {
+        return (StorageRepository) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{StorageRepository.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "findProcessedSourceFileNames":
+                    return new ArrayList<>(processed);
+                case "findSourceFileByName":
+                    String filename = (String) args[0];
+                    if (!processed.contains(filename) && !failedAttempts.containsKey(filename)) {
+                        return null;
+                    }
+                    SourceFile sourceFile = new SourceFile(filename, processed.contains(filename));
+                    sourceFile.setFailedAttempts(failedAttempts.getOrDefault(filename, 0));
+                    return sourceFile;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
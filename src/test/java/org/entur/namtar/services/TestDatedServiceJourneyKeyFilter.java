@@ -0,0 +1,147 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.entur.namtar.services;
+
+import org.entur.namtar.model.DatedServiceJourney;
+import org.entur.namtar.repository.persistence.StorageRepository;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+public class TestDatedServiceJourneyKeyFilter {
+
+    private final String today = LocalDate.now().toString();
+
+    private final List<DatedServiceJourney> committed = new ArrayList<>();
+    private final List<Long> committedIds = new ArrayList<>();
+    private final List<Instant> createdDates = new ArrayList<>();
+    private Runnable duringScan = () -> {};
+
+    @Test
+    public void testLateCommittedRowsAreFoundOnRefresh() {
+        DatedServiceJourneyKeyFilter filter = new DatedServiceJourneyKeyFilter(1000, 0.01, 0, Duration.ofMinutes(40));
+        StorageRepository repository = createRepository();
+
+        commit(1, "RUT:ServiceJourney:1");
+        commit(3, "RUT:ServiceJourney:3");
+        filter.refresh(repository);
+
+        // Id 2 was allocated before id 3, but committed after the refresh
+        commit(2, "RUT:ServiceJourney:2");
+        filter.refresh(repository);
+
+        assertTrue(filter.mightContainServiceJourney("RUT:ServiceJourney:1", today));
+        assertTrue(filter.mightContainServiceJourney("RUT:ServiceJourney:2", today));
+        assertTrue(filter.mightContainPrivateCode("RUT:ServiceJourney:2", today));
+        assertTrue(filter.mightContainServiceJourney("RUT:ServiceJourney:3", today));
+    }
+
+    @Test
+    public void testRowsCommittedLongAfterTheirIdsAreFoundOnRefresh() {
+        DatedServiceJourneyKeyFilter filter = new DatedServiceJourneyKeyFilter(1000, 0.01, 0, Duration.ofMinutes(40));
+        StorageRepository repository = createRepository();
+
+        commit(1, "RUT:ServiceJourney:1", Instant.now().minus(Duration.ofHours(2)));
+        for (long id = 3; id < 100000; id += 1000) {
+            commit(id, "ATB:ServiceJourney:" + id, Instant.now());
+        }
+        filter.refresh(repository);
+
+        // Created by an import that started 30 minutes ago, and committed after many newer rows
+        commit(2, "RUT:ServiceJourney:2", Instant.now().minus(Duration.ofMinutes(30)));
+        filter.refresh(repository);
+
+        assertTrue(filter.mightContainServiceJourney("RUT:ServiceJourney:2", today));
+        assertTrue(filter.mightContainPrivateCode("RUT:ServiceJourney:2", today));
+    }
+
+    @Test
+    public void testRowsCreatedBeforeTheRescanPeriodAreNotScannedAgain() {
+        DatedServiceJourneyKeyFilter filter = new DatedServiceJourneyKeyFilter(1000, 0.01, 0, Duration.ofMinutes(40));
+        StorageRepository repository = createRepository();
+
+        commit(2, "RUT:ServiceJourney:2", Instant.now());
+        filter.refresh(repository);
+
+        // Could only be committed this late if its transaction did not time out
+        commit(1, "RUT:ServiceJourney:1", Instant.now().minus(Duration.ofHours(2)));
+        filter.refresh(repository);
+
+        assertFalse(filter.mightContainServiceJourney("RUT:ServiceJourney:1", today));
+    }
+
+    @Test
+    public void testRowsAddedDuringRebuildAreKept() {
+        // Full after the first refresh, so the next refresh rebuilds it
+        DatedServiceJourneyKeyFilter filter = new DatedServiceJourneyKeyFilter(1, 0.01, 0, Duration.ofMinutes(40));
+        StorageRepository repository = createRepository();
+
+        commit(1, "RUT:ServiceJourney:1");
+        commit(2, "RUT:ServiceJourney:2");
+        filter.refresh(repository);
+
+        // Committed by an import while the new filter is populated
+        duringScan = () -> filter.add(new DatedServiceJourney("RUT:ServiceJourney:4", 0, "RUT:ServiceJourney:4", "RUT:Line:1", today, "12:00"));
+        filter.refresh(repository);
+
+        assertTrue(filter.mightContainServiceJourney("RUT:ServiceJourney:1", today));
+        assertTrue(filter.mightContainServiceJourney("RUT:ServiceJourney:4", today));
+    }
+
+    private void commit(long id, String serviceJourneyId) {
+        commit(id, serviceJourneyId, Instant.now());
+    }
+
+    private void commit(long id, String serviceJourneyId, Instant createdDate) {
+        committed.add(new DatedServiceJourney(serviceJourneyId, 0, serviceJourneyId, "RUT:Line:1", today, "12:00"));
+        committedIds.add(id);
+        createdDates.add(createdDate);
+    }
+
+    /*
+     * Only scanKeys is used by the filter
+     */
+    private StorageRepository createRepository() {
+        return (StorageRepository) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{StorageRepository.class}, (proxy, method, args) -> {
+            if (!method.getName().equals("scanKeys")) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            String fromDepartureDate = (String) args[0];
+            long maxId = (long) args[1];
+            Timestamp createdFrom = (Timestamp) args[2];
+            StorageRepository.DatedServiceJourneyKeyConsumer consumer = (StorageRepository.DatedServiceJourneyKeyConsumer) args[3];
+            duringScan.run();
+            for (int i = 0; i < committed.size(); i++) {
+                DatedServiceJourney journey = committed.get(i);
+                boolean scanned = committedIds.get(i) > (long) args[1] || (createdFrom != null && !createdDates.get(i).isBefore(createdFrom.toInstant()));
+                if (scanned && journey.getDepartureDate().compareTo(fromDepartureDate) >= 0) {
+                    consumer.accept(journey.getServiceJourneyId(), journey.getPrivateCode(), journey.getDepartureDate());
+                    maxId = Math.max(maxId, committedIds.get(i));
+                }
+            }
+            return maxId;
+        });
+    }
+}